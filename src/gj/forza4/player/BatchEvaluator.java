@@ -0,0 +1,271 @@
+package gj.forza4.player;
+
+import java.util.Random;
+
+/**
+ * La classe BatchEvaluator valuta molte posizioni in una volta sola. Le
+ * posizioni sono passate come due array di bitboard, uno per il giocatore e
+ * uno per l'AI, con la codifica di {@link Position}. Per ogni posizione
+ * calcola il vincitore, come {@link Board#getWinner()}, e le minacce dei due
+ * giocatori, ovvero le celle vuote che completerebbero una sequenza.
+ * <p>
+ * Le sequenze vengono cercate con shift e maschere sui bitboard. Se il modulo
+ * {@code jdk.incubator.vector}  disponibile, {@link #create(int, int)} ritorna
+ * un'implementazione che valuta pi posizioni per istruzione con la Vector
+ * API; altrimenti ritorna un'implementazione scalare con gli stessi
+ * risultati. Per usare la versione vettoriale bisogna compilare ed eseguire
+ * con {@code --add-modules jdk.incubator.vector}.
+ * <p>
+ * Una posizione raggiunta in una partita ha al massimo un vincitore. Se
+ * entrambi i giocatori hanno una sequenza, il risultato  {@link Board#PLAYER}.
+ *
+ * @author Ubaldo Puocci
+ */
+public abstract class BatchEvaluator {
+
+	/** Altezza della board. */
+	final int height;
+
+	/** Larghezza della board. */
+	final int width;
+
+	/**
+	 * Distanze tra due celle consecutive di una sequenza nei bitboard:
+	 * verticale, orizzontale e le due oblique.
+	 */
+	final int[] shifts;
+
+	/** Bitboard con tutte le celle della board accese. */
+	final long boardMask;
+
+	/**
+	 * Istanzia un nuovo BatchEvaluator per board delle dimensioni indicate.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 */
+	BatchEvaluator(int height, int width) {
+		if (width * (height + 1) > Long.SIZE) {
+			throw new IllegalArgumentException("Board " + height + "x" + width + " cannot be packed");
+		}
+		this.height = height;
+		this.width = width;
+		this.shifts = new int[] { 1, height + 1, height, height + 2 };
+		long bottom = 0;
+		for (int x = 0; x < width; x++) {
+			bottom |= 1L << (x * (height + 1));
+		}
+		this.boardMask = bottom * ((1L << height) - 1);
+	}
+
+	/**
+	 * Crea il BatchEvaluator pi veloce disponibile: quello vettoriale se il
+	 * modulo {@code jdk.incubator.vector}  caricato e i vettori della CPU
+	 * hanno almeno {@link VectorBatchEvaluator#MIN_LANES} lane, altrimenti
+	 * quello scalare.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @return il BatchEvaluator.
+	 */
+	public static BatchEvaluator create(int height, int width) {
+		if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (BatchEvaluator) Class.forName("gj.forza4.player.VectorBatchEvaluator")
+						.getDeclaredConstructor(int.class, int.class).newInstance(height, width);
+			} catch (ReflectiveOperationException | LinkageError e) {
+				// si usa la versione scalare
+			}
+		}
+		return new ScalarBatchEvaluator(height, width);
+	}
+
+	/**
+	 * Calcola il vincitore di ogni posizione.
+	 *
+	 * @param player
+	 *            i bitboard del giocatore
+	 * @param ai
+	 *            i bitboard dell'AI
+	 * @param count
+	 *            il numero di posizioni da valutare
+	 * @param winners
+	 *            l'array in cui scrivere, per ogni posizione,
+	 *            {@link Board#NOBODY}, {@link Board#PLAYER} o {@link Board#AI}
+	 */
+	public abstract void winners(long[] player, long[] ai, int count, byte[] winners);
+
+	/**
+	 * Calcola le minacce di ogni posizione: le celle vuote in cui un
+	 * segnalino completerebbe una sequenza. Il numero di minacce si ottiene
+	 * con {@link Long#bitCount(long)}.
+	 *
+	 * @param player
+	 *            i bitboard del giocatore
+	 * @param ai
+	 *            i bitboard dell'AI
+	 * @param count
+	 *            il numero di posizioni da valutare
+	 * @param playerThreats
+	 *            l'array in cui scrivere le minacce del giocatore
+	 * @param aiThreats
+	 *            l'array in cui scrivere le minacce dell'AI
+	 */
+	public abstract void threats(long[] player, long[] ai, int count, long[] playerThreats, long[] aiThreats);
+
+	/**
+	 * Calcola il vincitore di ogni posizione.
+	 *
+	 * @param positions
+	 *            le posizioni da valutare
+	 * @return per ogni posizione, il segnalino del vincitore.
+	 */
+	public byte[] winners(Position[] positions) {
+		long[] player = new long[positions.length];
+		long[] ai = new long[positions.length];
+		for (int i = 0; i < positions.length; i++) {
+			player[i] = positions[i].getPlayerBits();
+			ai[i] = positions[i].getAiBits();
+		}
+		byte[] winners = new byte[positions.length];
+		winners(player, ai, positions.length, winners);
+		return winners;
+	}
+
+	/**
+	 * Controlla se il bitboard contiene una sequenza completa.
+	 *
+	 * @param bits
+	 *            il bitboard da controllare
+	 * @return true, se c' una sequenza. False altrimenti.
+	 */
+	boolean hasFour(long bits) {
+		for (int shift : shifts) {
+			long pairs = bits & (bits >>> shift);
+			if ((pairs & (pairs >>> 2 * shift)) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calcola le celle vuote che completerebbero una sequenza del bitboard.
+	 *
+	 * @param bits
+	 *            il bitboard del giocatore
+	 * @param mask
+	 *            il bitboard delle celle occupate
+	 * @return il bitboard delle minacce.
+	 */
+	long threatCells(long bits, long mask) {
+		// verticale: tre segnalini sotto la cella
+		long result = (bits << 1) & (bits << 2) & (bits << 3);
+		for (int i = 1; i < shifts.length; i++) {
+			int shift = shifts[i];
+			long pairs = (bits << shift) & (bits << 2 * shift);
+			result |= pairs & (bits << 3 * shift);
+			result |= pairs & (bits >>> shift);
+			pairs = (bits >>> shift) & (bits >>> 2 * shift);
+			result |= pairs & (bits << shift);
+			result |= pairs & (bits >>> 3 * shift);
+		}
+		return result & (boardMask ^ mask);
+	}
+
+	/**
+	 * Controlla che i risultati di questo BatchEvaluator coincidano con
+	 * {@link Board#getWinner()} e con {@link ThreatAnalyzer#isThreat} su
+	 * posizioni casuali, giocate finch qualcuno non vince o la board  piena.
+	 *
+	 * @param positions
+	 *            il numero di posizioni da controllare
+	 * @param seed
+	 *            il seme del generatore casuale
+	 * @return il numero di posizioni con risultati diversi.
+	 */
+	int verify(int positions, long seed) {
+		Random random = new Random(seed);
+		Board[] boards = new Board[positions];
+		long[] player = new long[positions];
+		long[] ai = new long[positions];
+		for (int i = 0; i < positions; i++) {
+			Board board = new Board(height, width);
+			int moves = random.nextInt(width * height + 1);
+			boolean turn = true;
+			for (int m = 0; m < moves && !board.hasWinner() && !board.isBoardFull(); m++) {
+				int colonna = random.nextInt(width);
+				if (board.makeMove(colonna, turn)) {
+					turn = !turn;
+				}
+			}
+			boards[i] = board;
+			player[i] = board.getPlayerBits();
+			ai[i] = board.getAiBits();
+		}
+		byte[] winners = new byte[positions];
+		long[] playerThreats = new long[positions];
+		long[] aiThreats = new long[positions];
+		winners(player, ai, positions, winners);
+		threats(player, ai, positions, playerThreats, aiThreats);
+		int errors = 0;
+		for (int i = 0; i < positions; i++) {
+			ThreatAnalyzer analyzer = new ThreatAnalyzer(boards[i]);
+			boolean same = winners[i] == boards[i].getWinner();
+			for (int x = 0; x < width && same; x++) {
+				for (int y = 0; y < height; y++) {
+					long bit = 1L << (x * (height + 1) + y);
+					if (analyzer.isThreat(x, y, Board.PLAYER) != ((playerThreats[i] & bit) != 0)
+							|| analyzer.isThreat(x, y, Board.AI) != ((aiThreats[i] & bit) != 0)) {
+						same = false;
+					}
+				}
+			}
+			if (!same) {
+				errors++;
+			}
+		}
+		return errors;
+	}
+
+	/**
+	 * Controlla e misura i BatchEvaluator disponibili dalla riga di comando.
+	 *
+	 * @param args
+	 *            il numero di posizioni da usare, di default 100000.
+	 */
+	public static void main(String[] args) {
+		int positions = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		BatchEvaluator[] evaluators = { new ScalarBatchEvaluator(6, 7), create(6, 7) };
+		for (BatchEvaluator evaluator : evaluators) {
+			System.out.println(evaluator.getClass().getSimpleName() + ": " + evaluator.verify(positions, 42)
+					+ " mismatches");
+		}
+		Random random = new Random(7);
+		long[] player = new long[positions];
+		long[] ai = new long[positions];
+		for (int i = 0; i < positions; i++) {
+			long mask = random.nextLong() & evaluators[0].boardMask;
+			player[i] = mask & random.nextLong();
+			ai[i] = mask & ~player[i];
+		}
+		byte[] winners = new byte[positions];
+		long[] playerThreats = new long[positions];
+		long[] aiThreats = new long[positions];
+		for (BatchEvaluator evaluator : evaluators) {
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < 50; round++) {
+				long start = System.nanoTime();
+				evaluator.winners(player, ai, positions, winners);
+				evaluator.threats(player, ai, positions, playerThreats, aiThreats);
+				best = Math.min(best, System.nanoTime() - start);
+			}
+			System.out.printf("%s: %.1f M positions/s%n", evaluator.getClass().getSimpleName(),
+					positions * 1e3 / best);
+		}
+	}
+}
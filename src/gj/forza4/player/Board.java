@@ -9,13 +9,13 @@ package gj.forza4.player;
 public class Board {
 
 	/** Segnalino che rappresenta la cella vuota. */
-	private final byte NOBODY = 0;
+	static final byte NOBODY = 0;
 
 	/** Segnalino che rappresenta la cella occupata dal giocatore. */
-	private final byte PLAYER = 1;
+	static final byte PLAYER = 1;
 
 	/** Segnalino che rappresenta la cella occupata dall'AI. */
-	private final byte AI = 2;
+	static final byte AI = 2;
 
 	/** Numero di segnalini in fila che occorrono per vincere. */
 	private final byte WIN_LENGTH = 4;
@@ -35,6 +35,34 @@ public class Board {
 	 */
 	private int[] columnCounts;
 
+	/** Numero di segnalini presenti nella board. */
+	private int moveCount;
+
+	/**
+	 * Chiavi di Zobrist, una per ogni cella e per ogni segnalino. Usate per
+	 * calcolare in modo incrementale la chiave della board, sono condivise da
+	 * tutte le board delle stesse dimensioni tramite {@link Tables}.
+	 */
+	private long[][][] zobrist;
+
+	/** Chiave di Zobrist dello stato corrente della board. */
+	private long key;
+
+	/**
+	 * Booleano che indica se la board entra in due long, con una riga in pi
+	 * per ogni colonna. Solo in questo caso vengono mantenuti i bitboard.
+	 */
+	private boolean packable;
+
+	/**
+	 * Bitboard dei segnalini del giocatore: il bit
+	 * {@code colonna * (altezza + 1) + riga}  acceso se la cella  occupata.
+	 */
+	private long playerBits;
+
+	/** Bitboard dei segnalini dell'AI, con la stessa codifica. */
+	private long aiBits;
+
 	/**
 	 * Istanzia una nuova Board creando l'array multidimensionale di altezza e
 	 * larghezza passati come parametri.
@@ -51,6 +79,37 @@ public class Board {
 		this.width = width;
 		this.board = new byte[width][height];
 		this.columnCounts = new int[width];
+		this.packable = width * (height + 1) <= Long.SIZE;
+		this.zobrist = Tables.get(height, width).zobrist;
+	}
+
+	/**
+	 * Istanzia una nuova Board a partire dai bitboard dei due giocatori, come
+	 * quelli ritornati da {@link #getPlayerBits()} e {@link #getAiBits()}.
+	 *
+	 * @param height
+	 *            l'altezza
+	 * @param width
+	 *            la larghezza
+	 * @param playerBits
+	 *            il bitboard del giocatore
+	 * @param aiBits
+	 *            il bitboard dell'AI
+	 */
+	Board(int height, int width, long playerBits, long aiBits) {
+		this(height, width);
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				long bit = 1L << (x * (height + 1) + y);
+				if ((playerBits & bit) != 0) {
+					makeMove(x, true);
+				} else if ((aiBits & bit) != 0) {
+					makeMove(x, false);
+				} else {
+					break;
+				}
+			}
+		}
 	}
 
 	/**
@@ -126,7 +185,17 @@ public class Board {
 	boolean makeMove(int column, boolean player) {
 		if (columnCounts[column] < height) {
 			byte sign = player ? PLAYER : AI;
+			key ^= zobrist[column][columnCounts[column]][player ? 0 : 1];
+			if (packable) {
+				long bit = 1L << (column * (height + 1) + columnCounts[column]);
+				if (player) {
+					playerBits |= bit;
+				} else {
+					aiBits |= bit;
+				}
+			}
 			board[column][columnCounts[column]++] = sign;
+			moveCount++;
 			return true;
 		}
 		return false;
@@ -149,6 +218,13 @@ public class Board {
 			if (board[column][columnCounts[column] - 1] == sign) {
 				board[column][columnCounts[column] - 1] = NOBODY;
 				columnCounts[column]--;
+				moveCount--;
+				if (packable) {
+					long bit = ~(1L << (column * (height + 1) + columnCounts[column]));
+					playerBits &= bit;
+					aiBits &= bit;
+				}
+				key ^= zobrist[column][columnCounts[column]][player ? 0 : 1];
 				return true;
 			}
 		}
@@ -164,6 +240,88 @@ public class Board {
 		return width;
 	}
 
+	/**
+	 * Ritorna l'altezza della board.
+	 *
+	 * @return l'altezza della board.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Ritorna il segnalino presente nella cella indicata.
+	 *
+	 * @param column
+	 *            la colonna della cella
+	 * @param row
+	 *            la riga della cella, partendo dal basso
+	 * @return il segnalino presente nella cella.
+	 */
+	byte getCell(int column, int row) {
+		return board[column][row];
+	}
+
+	/**
+	 * Ritorna il numero di segnalini presenti nella colonna, che  anche la
+	 * riga in cui finir il prossimo segnalino.
+	 *
+	 * @param column
+	 *            la colonna da controllare
+	 * @return il numero di segnalini nella colonna.
+	 */
+	int getColumnCount(int column) {
+		return columnCounts[column];
+	}
+
+	/**
+	 * Ritorna il numero di celle ancora vuote nella board.
+	 *
+	 * @return il numero di celle vuote.
+	 */
+	int getEmptyCells() {
+		return width * height - moveCount;
+	}
+
+	/**
+	 * Controlla se la board pu essere rappresentata con due bitboard.
+	 *
+	 * @return true, se {@code larghezza * (altezza + 1)} non supera 64.
+	 */
+	boolean isPackable() {
+		return packable;
+	}
+
+	/**
+	 * Ritorna il bitboard dei segnalini del giocatore. Valido solo se
+	 * {@link #isPackable()}  true.
+	 *
+	 * @return il bitboard del giocatore.
+	 */
+	long getPlayerBits() {
+		return playerBits;
+	}
+
+	/**
+	 * Ritorna il bitboard dei segnalini dell'AI. Valido solo se
+	 * {@link #isPackable()}  true.
+	 *
+	 * @return il bitboard dell'AI.
+	 */
+	long getAiBits() {
+		return aiBits;
+	}
+
+	/**
+	 * Ritorna la chiave di Zobrist dello stato corrente della board. Due stati
+	 * con gli stessi segnalini nelle stesse celle hanno la stessa chiave.
+	 *
+	 * @return la chiave della board.
+	 */
+	long getKey() {
+		return key;
+	}
+
 	/**
 	 * Controlla se c' un possibile vincitore nello stato corrente della board.
 	 *
@@ -0,0 +1,620 @@
+package gj.forza4.player;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * La classe Broadcaster distribuisce agli spettatori le mosse delle partite
+ * in corso. Ogni partita pubblica i propri eventi su un {@link GameFeed}; gli
+ * spettatori si collegano via TCP e mandano l'identificativo della partita
+ * da seguire. Ricevono prima una fotografia della partita e poi un messaggio
+ * per ogni evento.
+ * <p>
+ * Le connessioni vengono divise tra alcuni thread di scrittura, ognuno con il
+ * proprio {@link Selector}. Quando una partita pubblica un evento, i thread
+ * che hanno spettatori della partita vengono svegliati e accumulano nel
+ * buffer di ogni spettatore tutti gli eventi nuovi, che vengono scritti con
+ * una sola scrittura non bloccante. Chi pubblica non aspetta mai gli
+ * spettatori: uno spettatore che resta indietro di pi di
+ * {@link GameFeed#RING_SIZE} eventi riceve una nuova fotografia, e uno che
+ * non legge per pi di {@link #SLOW_MILLIS} ms viene scollegato. Viene
+ * scollegato anche chi non sceglie una partita entro
+ * {@link #SUBSCRIBE_MILLIS} ms dal collegamento. Quando una partita viene
+ * chiusa con {@link #close(int)} i suoi spettatori ricevono gli ultimi eventi
+ * e vengono scollegati.
+ * <p>
+ * Messaggi, con gli interi in big endian:
+ * <ul>
+ * <li>{@code MOVE}: tipo, partita, sequenza, colonna con il flag
+ * {@link GameFeed#PLAYER_FLAG} se la mossa  del giocatore;</li>
+ * <li>{@code START}: tipo, partita, sequenza, altezza e larghezza;</li>
+ * <li>{@code SNAPSHOT}: tipo, partita, sequenza del prossimo evento,
+ * altezza, larghezza, numero di mosse e le mosse.</li>
+ * </ul>
+ *
+ * @author Ubaldo Puocci
+ */
+public class Broadcaster implements Closeable {
+
+	/** Tipo del messaggio con una mossa. */
+	static final byte MOVE = 1;
+
+	/** Tipo del messaggio con l'inizio di una partita. */
+	static final byte START = 2;
+
+	/** Tipo del messaggio con la fotografia di una partita. */
+	static final byte SNAPSHOT = 3;
+
+	/** Dimensione dei messaggi MOVE e START, in byte. */
+	static final int MESSAGE_BYTES = 1 + 4 + 4 + 2;
+
+	/** Dimensione della fotografia senza le mosse, in byte. */
+	static final int SNAPSHOT_BYTES = 1 + 4 + 4 + 3;
+
+	/** Dimensione del buffer di uscita di ogni spettatore, in byte. */
+	static final int OUTPUT_BYTES = 8 << 10;
+
+	/** Tempo dopo il quale uno spettatore che non legge viene scollegato, in ms. */
+	static final long SLOW_MILLIS = 5000;
+
+	/**
+	 * Tempo dopo il quale uno spettatore che non ha scelto la partita viene
+	 * scollegato, in ms.
+	 */
+	static final long SUBSCRIBE_MILLIS = 5000;
+
+	/** Intervallo massimo tra due controlli degli spettatori lenti, in ms. */
+	private static final long TICK_MILLIS = 100;
+
+	/** Socket su cui si collegano gli spettatori. */
+	private final ServerSocketChannel server;
+
+	/** Thread di scrittura. */
+	private final Writer[] writers;
+
+	/** Le partite, per identificativo. */
+	private final ConcurrentMap<Integer, GameFeed> feeds = new ConcurrentHashMap<Integer, GameFeed>();
+
+	/** Numero di spettatori scollegati perch troppo lenti. */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/** Numero di fotografie mandate agli spettatori rimasti indietro. */
+	private final AtomicLong snapshots = new AtomicLong();
+
+	/** Booleano che indica se il Broadcaster  stato chiuso. */
+	private volatile boolean closed;
+
+	/**
+	 * Istanzia un nuovo Broadcaster e avvia i suoi thread.
+	 *
+	 * @param port
+	 *            la porta su cui accettare gli spettatori, 0 per sceglierne
+	 *            una libera
+	 * @param writerCount
+	 *            il numero di thread di scrittura
+	 * @throws IOException
+	 *             se la porta non pu essere aperta.
+	 */
+	public Broadcaster(int port, int writerCount) throws IOException {
+		this.server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		this.writers = new Writer[writerCount];
+		for (int i = 0; i < writerCount; i++) {
+			writers[i] = new Writer();
+			Thread thread = new Thread(writers[i], "broadcast-writer-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+		Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				accept();
+			}
+		}, "broadcast-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Ritorna la porta su cui il Broadcaster accetta gli spettatori.
+	 *
+	 * @return la porta.
+	 */
+	public int getPort() {
+		return server.socket().getLocalPort();
+	}
+
+	/**
+	 * Crea il canale di una partita, o ritorna quello esistente.
+	 *
+	 * @param id
+	 *            l'identificativo della partita
+	 * @return il canale della partita.
+	 */
+	public GameFeed open(int id) {
+		GameFeed feed = feeds.get(id);
+		if (feed == null) {
+			feed = new GameFeed(this, id);
+			GameFeed previous = feeds.putIfAbsent(id, feed);
+			if (previous != null) {
+				feed = previous;
+			}
+		}
+		return feed;
+	}
+
+	/**
+	 * Chiude il canale di una partita finita: non accetta pi eventi n
+	 * spettatori nuovi, e gli spettatori ricevono gli eventi gi pubblicati e
+	 * poi vengono scollegati. Lo stesso identificativo pu essere riaperto
+	 * con {@link #open(int)} per una nuova partita.
+	 *
+	 * @param id
+	 *            l'identificativo della partita
+	 */
+	public void close(int id) {
+		GameFeed feed = feeds.remove(id);
+		if (feed != null) {
+			feed.close();
+			for (Writer writer : writers) {
+				writer.finish(feed);
+			}
+		}
+	}
+
+	/**
+	 * Ritorna il numero di spettatori scollegati perch troppo lenti.
+	 *
+	 * @return il numero di spettatori scollegati.
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Ritorna il numero di fotografie mandate agli spettatori rimasti
+	 * indietro.
+	 *
+	 * @return il numero di fotografie.
+	 */
+	public long getSnapshots() {
+		return snapshots.get();
+	}
+
+	/**
+	 * Avvisa i thread di scrittura che una partita ha pubblicato un evento.
+	 *
+	 * @param feed
+	 *            la partita
+	 */
+	void signal(GameFeed feed) {
+		for (Writer writer : writers) {
+			writer.signal(feed);
+		}
+	}
+
+	/**
+	 * Accetta gli spettatori e li distribuisce tra i thread di scrittura.
+	 */
+	private void accept() {
+		int next = 0;
+		try {
+			while (!closed) {
+				SocketChannel channel = server.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				writers[next++ % writers.length].add(new Subscriber(channel, System.currentTimeMillis()));
+			}
+		} catch (IOException e) {
+			// il Broadcaster  stato chiuso
+		}
+	}
+
+	/**
+	 * Chiude il Broadcaster e scollega tutti gli spettatori.
+	 *
+	 * @throws IOException
+	 *             se il socket non pu essere chiuso.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		server.close();
+		for (Writer writer : writers) {
+			writer.selector.wakeup();
+		}
+	}
+
+	/**
+	 * La classe Subscriber contiene lo stato di uno spettatore.
+	 */
+	private static class Subscriber {
+
+		/** La connessione dello spettatore. */
+		final SocketChannel channel;
+
+		/** Buffer in cui leggere l'identificativo della partita. */
+		final ByteBuffer in = ByteBuffer.allocate(Integer.BYTES);
+
+		/** Buffer dei messaggi non ancora scritti, in modalit scrittura. */
+		final ByteBuffer out = ByteBuffer.allocateDirect(OUTPUT_BYTES);
+
+		/** La partita seguita, o null se non  ancora stata scelta. */
+		GameFeed feed;
+
+		/** Numero di sequenza del prossimo evento da mandare. */
+		long cursor;
+
+		/** Istante da cui lo spettatore non legge, o 0 se sta leggendo. */
+		long stalledSince;
+
+		/** Istante in cui la connessione  stata accettata. */
+		final long acceptedAt;
+
+		/**
+		 * Booleano che indica se la partita  stata chiusa e lo spettatore
+		 * va scollegato appena ha ricevuto tutti gli eventi.
+		 */
+		boolean finishing;
+
+		/**
+		 * Istanzia un nuovo Subscriber.
+		 *
+		 * @param channel
+		 *            la connessione dello spettatore
+		 * @param acceptedAt
+		 *            l'istante in cui la connessione  stata accettata
+		 */
+		Subscriber(SocketChannel channel, long acceptedAt) {
+			this.channel = channel;
+			this.acceptedAt = acceptedAt;
+		}
+	}
+
+	/**
+	 * La classe Writer  un thread di scrittura, che serve una parte degli
+	 * spettatori.
+	 */
+	private class Writer implements Runnable {
+
+		/** Selettore delle connessioni di questo thread. */
+		final Selector selector;
+
+		/** Spettatori accettati e non ancora registrati nel selettore. */
+		private final Queue<Subscriber> pending = new ConcurrentLinkedQueue<Subscriber>();
+
+		/** Partite con almeno uno spettatore servito da questo thread. */
+		private final Set<GameFeed> watched = ConcurrentHashMap.newKeySet();
+
+		/** Partite che hanno pubblicato eventi da mandare. */
+		private final Set<GameFeed> dirty = ConcurrentHashMap.newKeySet();
+
+		/** Partite chiuse i cui spettatori vanno scollegati. */
+		private final Queue<GameFeed> finished = new ConcurrentLinkedQueue<GameFeed>();
+
+		/** Spettatori di ogni partita. Usata solo da questo thread. */
+		private final Map<GameFeed, List<Subscriber>> subscribers = new HashMap<GameFeed, List<Subscriber>>();
+
+		/** Istante dell'ultimo controllo degli spettatori lenti. */
+		private long lastCheck;
+
+		/**
+		 * Istanzia un nuovo Writer.
+		 *
+		 * @throws IOException
+		 *             se il selettore non pu essere aperto.
+		 */
+		Writer() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Aggiunge uno spettatore a questo thread.
+		 *
+		 * @param subscriber
+		 *            lo spettatore appena collegato
+		 */
+		void add(Subscriber subscriber) {
+			pending.add(subscriber);
+			selector.wakeup();
+		}
+
+		/**
+		 * Segna una partita come da servire, se questo thread ha suoi
+		 * spettatori. Pi eventi pubblicati prima che il thread si svegli
+		 * vengono mandati insieme.
+		 *
+		 * @param feed
+		 *            la partita
+		 */
+		void signal(GameFeed feed) {
+			if (watched.contains(feed) && dirty.add(feed)) {
+				selector.wakeup();
+			}
+		}
+
+		/**
+		 * Fa scollegare gli spettatori di una partita chiusa, dopo che hanno
+		 * ricevuto tutti gli eventi.
+		 *
+		 * @param feed
+		 *            la partita chiusa
+		 */
+		void finish(GameFeed feed) {
+			finished.add(feed);
+			selector.wakeup();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed) {
+					selector.select(TICK_MILLIS);
+					Subscriber accepted;
+					while ((accepted = pending.poll()) != null) {
+						try {
+							accepted.channel.register(selector, SelectionKey.OP_READ, accepted);
+						} catch (ClosedChannelException e) {
+							// lo spettatore se n' gi andato
+						}
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Subscriber subscriber = (Subscriber) key.attachment();
+						try {
+							if (key.isReadable()) {
+								read(key, subscriber);
+							}
+							if (key.isValid() && key.isWritable()) {
+								send(key, subscriber);
+								if (subscriber.finishing && subscriber.out.position() == 0) {
+									drop(key, subscriber);
+								}
+							}
+						} catch (IOException e) {
+							drop(key, subscriber);
+						}
+					}
+					Iterator<GameFeed> feeds = dirty.iterator();
+					while (feeds.hasNext()) {
+						GameFeed feed = feeds.next();
+						feeds.remove();
+						List<Subscriber> list = subscribers.get(feed);
+						for (int i = 0; list != null && i < list.size(); i++) {
+							Subscriber subscriber = list.get(i);
+							SelectionKey key = subscriber.channel.keyFor(selector);
+							try {
+								send(key, subscriber);
+							} catch (IOException e) {
+								drop(key, subscriber);
+								i--;
+							}
+						}
+					}
+					GameFeed closedFeed;
+					while ((closedFeed = finished.poll()) != null) {
+						disconnect(closedFeed);
+					}
+					dropSlow();
+				}
+			} catch (IOException e) {
+				// il selettore non  pi utilizzabile
+			} finally {
+				for (SelectionKey key : selector.keys()) {
+					try {
+						key.channel().close();
+					} catch (IOException e) {
+						// la connessione  gi chiusa
+					}
+				}
+				try {
+					selector.close();
+				} catch (IOException e) {
+					// il selettore  gi chiuso
+				}
+			}
+		}
+
+		/**
+		 * Manda agli spettatori di una partita chiusa gli ultimi eventi e
+		 * scollega quelli che li hanno ricevuti tutti. Gli altri restano
+		 * collegati finch il buffer non si svuota o non diventano lenti.
+		 *
+		 * @param feed
+		 *            la partita chiusa
+		 */
+		private void disconnect(GameFeed feed) {
+			List<Subscriber> list = subscribers.get(feed);
+			if (list == null) {
+				return;
+			}
+			for (Subscriber subscriber : new ArrayList<Subscriber>(list)) {
+				SelectionKey key = subscriber.channel.keyFor(selector);
+				subscriber.finishing = true;
+				try {
+					send(key, subscriber);
+				} catch (IOException e) {
+					drop(key, subscriber);
+					continue;
+				}
+				if (subscriber.out.position() == 0) {
+					drop(key, subscriber);
+				}
+			}
+		}
+
+		/**
+		 * Legge dallo spettatore l'identificativo della partita, o riconosce
+		 * che ha chiuso la connessione.
+		 *
+		 * @param key
+		 *            la chiave dello spettatore
+		 * @param subscriber
+		 *            lo spettatore
+		 * @throws IOException
+		 *             se la connessione  stata chiusa o la partita non
+		 *             esiste.
+		 */
+		private void read(SelectionKey key, Subscriber subscriber) throws IOException {
+			ByteBuffer in = subscriber.in;
+			if (!in.hasRemaining()) {
+				// dopo l'iscrizione lo spettatore non manda pi niente
+				in.clear();
+			}
+			if (subscriber.channel.read(in) < 0) {
+				throw new IOException("Subscriber closed the connection");
+			}
+			if (subscriber.feed == null && !in.hasRemaining()) {
+				GameFeed feed = Broadcaster.this.feeds.get(in.getInt(0));
+				if (feed == null) {
+					throw new IOException("Unknown game");
+				}
+				subscriber.feed = feed;
+				subscriber.cursor = -1;
+				List<Subscriber> list = subscribers.get(feed);
+				if (list == null) {
+					list = new ArrayList<Subscriber>();
+					subscribers.put(feed, list);
+					watched.add(feed);
+				}
+				list.add(subscriber);
+				send(key, subscriber);
+			}
+		}
+
+		/**
+		 * Accumula gli eventi nuovi nel buffer dello spettatore e ne scrive
+		 * quanto la connessione accetta senza bloccare.
+		 *
+		 * @param key
+		 *            la chiave dello spettatore
+		 * @param subscriber
+		 *            lo spettatore
+		 * @throws IOException
+		 *             se la scrittura fallisce.
+		 */
+		private void send(SelectionKey key, Subscriber subscriber) throws IOException {
+			ByteBuffer out = subscriber.out;
+			boolean progress = true;
+			while (progress) {
+				fill(subscriber);
+				out.flip();
+				progress = subscriber.channel.write(out) > 0;
+				out.compact();
+				progress &= subscriber.cursor < subscriber.feed.getSequence();
+			}
+			if (out.position() > 0) {
+				key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+				if (subscriber.stalledSince == 0) {
+					subscriber.stalledSince = System.currentTimeMillis();
+				}
+			} else {
+				key.interestOps(SelectionKey.OP_READ);
+				subscriber.stalledSince = 0;
+			}
+		}
+
+		/**
+		 * Accumula nel buffer dello spettatore gli eventi che ci stanno. Se
+		 * lo spettatore  troppo indietro, o non ha ancora ricevuto niente
+		 * (il cursore vale -1), accumula una fotografia della partita.
+		 *
+		 * @param subscriber
+		 *            lo spettatore
+		 */
+		private void fill(Subscriber subscriber) {
+			GameFeed feed = subscriber.feed;
+			ByteBuffer out = subscriber.out;
+			long sequence = feed.getSequence();
+			while (subscriber.cursor < sequence && out.remaining() >= MESSAGE_BYTES) {
+				long entry = subscriber.cursor < 0 ? -1 : feed.entry(subscriber.cursor);
+				if (entry < 0) {
+					long next = feed.snapshot(out);
+					if (next >= 0) {
+						if (subscriber.cursor >= 0) {
+							snapshots.incrementAndGet();
+						}
+						subscriber.cursor = next;
+					}
+					return;
+				}
+				out.put((byte) (entry >>> 16 & 0xFF));
+				out.putInt(feed.getId());
+				out.putInt((int) subscriber.cursor);
+				out.putShort((short) entry);
+				subscriber.cursor++;
+			}
+		}
+
+		/**
+		 * Scollega gli spettatori che non leggono da pi di
+		 * {@link #SLOW_MILLIS} ms, e quelli che non hanno scelto la partita
+		 * entro {@link #SUBSCRIBE_MILLIS} ms dal collegamento.
+		 */
+		private void dropSlow() {
+			long now = System.currentTimeMillis();
+			if (now - lastCheck < TICK_MILLIS) {
+				return;
+			}
+			lastCheck = now;
+			for (SelectionKey key : new ArrayList<SelectionKey>(selector.keys())) {
+				Subscriber subscriber = (Subscriber) key.attachment();
+				if (subscriber.stalledSince != 0 && now - subscriber.stalledSince > SLOW_MILLIS) {
+					dropped.incrementAndGet();
+					drop(key, subscriber);
+				} else if (subscriber.feed == null && now - subscriber.acceptedAt > SUBSCRIBE_MILLIS) {
+					drop(key, subscriber);
+				}
+			}
+		}
+
+		/**
+		 * Scollega uno spettatore.
+		 *
+		 * @param key
+		 *            la chiave dello spettatore
+		 * @param subscriber
+		 *            lo spettatore
+		 */
+		private void drop(SelectionKey key, Subscriber subscriber) {
+			if (key != null) {
+				key.cancel();
+			}
+			try {
+				subscriber.channel.close();
+			} catch (IOException e) {
+				// la connessione  gi chiusa
+			}
+			if (subscriber.feed != null) {
+				List<Subscriber> list = subscribers.get(subscriber.feed);
+				list.remove(subscriber);
+				if (list.isEmpty()) {
+					subscribers.remove(subscriber.feed);
+					watched.remove(subscriber.feed);
+				}
+				subscriber.feed = null;
+			}
+		}
+	}
+}
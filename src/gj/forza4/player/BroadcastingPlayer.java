@@ -0,0 +1,59 @@
+package gj.forza4.player;
+
+/**
+ * La classe BroadcastingPlayer avvolge un altro {@link Player} e pubblica su
+ * un {@link GameFeed} l'inizio di ogni partita e tutte le mosse che passano
+ * per {@link #move()} e {@link #tellMove(int)}, cos gli spettatori di un
+ * {@link Broadcaster} possono seguire la partita. La pubblicazione non
+ * aspetta mai gli spettatori.
+ * <p>
+ * Il BroadcastingPlayer vede tutte le mosse della partita, le proprie con
+ * move() e quelle dell'avversario con tellMove(), quindi ogni partita ha il
+ * proprio canale e un solo BroadcastingPlayer: se avvolgesse anche
+ * l'avversario, ogni mossa verrebbe pubblicata due volte.
+ *
+ * @author Ubaldo Puocci
+ */
+public class BroadcastingPlayer implements Player {
+
+	/** Il Player avvolto. */
+	private final Player player;
+
+	/** Il canale della partita. */
+	private final GameFeed feed;
+
+	/**
+	 * Istanzia un nuovo BroadcastingPlayer.
+	 *
+	 * @param player
+	 *            il Player da avvolgere
+	 * @param feed
+	 *            il canale su cui pubblicare la partita
+	 * @throws IllegalStateException
+	 *             se il canale  gi usato da un altro BroadcastingPlayer.
+	 */
+	public BroadcastingPlayer(Player player, GameFeed feed) {
+		feed.attach();
+		this.player = player;
+		this.feed = feed;
+	}
+
+	@Override
+	public void start(int nRighe, int nColonne) {
+		player.start(nRighe, nColonne);
+		feed.start(nRighe, nColonne);
+	}
+
+	@Override
+	public int move() {
+		int colonna = player.move();
+		feed.publish(colonna, false);
+		return colonna;
+	}
+
+	@Override
+	public void tellMove(int colonna) {
+		player.tellMove(colonna);
+		feed.publish(colonna, true);
+	}
+}
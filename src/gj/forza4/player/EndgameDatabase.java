@@ -0,0 +1,232 @@
+package gj.forza4.player;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * La classe EndgameDatabase legge un database di finali prodotto da
+ * {@link EndgameGenerator}. Per ogni posizione con al massimo
+ * {@link #getMaxEmpty()} celle vuote contenuta nel file, il database conosce
+ * l'esito della partita per il giocatore che deve muovere.
+ * <p>
+ * Le posizioni sono identificate dalla chiave {@code current + mask}, dove
+ * {@code current} sono i segnalini di chi muove e {@code mask} le celle
+ * occupate, con la codifica di {@link Position}. Il file contiene le chiavi
+ * ordinate, divise in blocchi di {@link #BLOCK_SIZE} chiavi: per ogni blocco
+ * l'indice salva la prima chiave, e le altre sono salvate come differenze
+ * dalla precedente in un varint. La posizione di una chiave nell'ordinamento
+ *  l'indice del suo esito, salvato in due bit. Il file viene mappato in
+ * memoria, quindi una ricerca legge solo l'indice e un blocco.
+ *
+ * @author Ubaldo Puocci
+ */
+public class EndgameDatabase {
+
+	/**
+	 * Propriet di sistema con il percorso del database caricato da
+	 * {@link Puocci#start(int, int)}.
+	 */
+	public static final String FILE_PROPERTY = "forza4.endgame";
+
+	/** Esito ritornato per le posizioni che non sono nel database. */
+	public static final int UNKNOWN = Integer.MIN_VALUE;
+
+	/** Numero che apre ogni file del database. */
+	static final int MAGIC = 0x46344547;
+
+	/** Numero di chiavi in ogni blocco. */
+	static final int BLOCK_SIZE = 64;
+
+	/** Dimensione dell'intestazione del file, in byte. */
+	static final int HEADER_BYTES = 4 + 3 + 4 + 4 + 8;
+
+	/** Dimensione di ogni voce dell'indice dei blocchi, in byte. */
+	static final int INDEX_ENTRY_BYTES = 8 + 4;
+
+	/** Il contenuto del file, mappato in memoria. */
+	private final ByteBuffer buffer;
+
+	/** Altezza della board. */
+	private final int height;
+
+	/** Larghezza della board. */
+	private final int width;
+
+	/** Numero massimo di celle vuote delle posizioni nel database. */
+	private final int maxEmpty;
+
+	/** Numero di posizioni nel database. */
+	private final int count;
+
+	/** Numero di blocchi. */
+	private final int blockCount;
+
+	/** Posizione dei dati dei blocchi nel file. */
+	private final int dataStart;
+
+	/** Posizione degli esiti nel file. */
+	private final long valuesStart;
+
+	/**
+	 * Istanzia un nuovo EndgameDatabase a partire dal contenuto del file.
+	 *
+	 * @param buffer
+	 *            il contenuto del file
+	 * @throws IOException
+	 *             se il file non  un database di finali.
+	 */
+	EndgameDatabase(ByteBuffer buffer) throws IOException {
+		this.buffer = buffer;
+		if (buffer.limit() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not a Forza4 endgame database");
+		}
+		this.height = buffer.get(4);
+		this.width = buffer.get(5);
+		this.maxEmpty = buffer.get(6);
+		this.count = buffer.getInt(7);
+		this.blockCount = buffer.getInt(11);
+		this.valuesStart = buffer.getLong(15);
+		this.dataStart = HEADER_BYTES + blockCount * INDEX_ENTRY_BYTES;
+		if (valuesStart + (count + 3) / 4 > buffer.limit()) {
+			throw new IOException("Truncated Forza4 endgame database");
+		}
+	}
+
+	/**
+	 * Apre il database mappando il file in memoria.
+	 *
+	 * @param file
+	 *            il file del database
+	 * @return il database.
+	 * @throws IOException
+	 *             se il file non pu essere letto o non  un database.
+	 */
+	public static EndgameDatabase open(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new EndgameDatabase(buffer);
+		}
+	}
+
+	/**
+	 * Apre il database indicato dalla propriet di sistema
+	 * {@link #FILE_PROPERTY}. Se la propriet non  impostata ritorna null. Un
+	 * file indicato ma illeggibile o generato per board di altre dimensioni 
+	 * un errore: non si gioca senza il database richiesto senza accorgersene.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @return il database, o null se la propriet non  impostata.
+	 * @throws UncheckedIOException
+	 *             se il file non pu essere letto o non  un database.
+	 * @throws IllegalArgumentException
+	 *             se il database  per board di altre dimensioni.
+	 */
+	public static EndgameDatabase loadDefault(int height, int width) {
+		String file = System.getProperty(FILE_PROPERTY);
+		if (file == null) {
+			return null;
+		}
+		EndgameDatabase database;
+		try {
+			database = open(Paths.get(file));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Cannot read endgame database " + file, e);
+		}
+		if (!database.fits(height, width)) {
+			throw new IllegalArgumentException("Endgame database " + file + " is not for a " + height + "x"
+					+ width + " board");
+		}
+		return database;
+	}
+
+	/**
+	 * Controlla se il database  stato generato per board delle dimensioni
+	 * indicate.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @return true, se le dimensioni coincidono. False altrimenti.
+	 */
+	public boolean fits(int height, int width) {
+		return this.height == height && this.width == width;
+	}
+
+	/**
+	 * Ritorna il numero massimo di celle vuote delle posizioni nel database.
+	 *
+	 * @return il numero massimo di celle vuote.
+	 */
+	public int getMaxEmpty() {
+		return maxEmpty;
+	}
+
+	/**
+	 * Ritorna il numero di posizioni nel database.
+	 *
+	 * @return il numero di posizioni.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Cerca l'esito di una posizione.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @return 1 se chi muove vince, -1 se perde, 0 se la partita finisce pari,
+	 *         {@link #UNKNOWN} se la posizione non  nel database.
+	 */
+	public int probe(long current, long mask) {
+		long key = current + mask;
+		int low = 0;
+		int high = blockCount - 1;
+		// ultimo blocco che inizia con una chiave non pi grande
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			if (buffer.getLong(HEADER_BYTES + middle * INDEX_ENTRY_BYTES) <= key) {
+				low = middle + 1;
+			} else {
+				high = middle - 1;
+			}
+		}
+		if (high < 0) {
+			return UNKNOWN;
+		}
+		int entry = HEADER_BYTES + high * INDEX_ENTRY_BYTES;
+		long candidate = buffer.getLong(entry);
+		int offset = dataStart + buffer.getInt(entry + 8);
+		int rank = high * BLOCK_SIZE;
+		int last = Math.min(count, rank + BLOCK_SIZE) - 1;
+		while (candidate != key) {
+			if (rank == last || candidate > key) {
+				return UNKNOWN;
+			}
+			long delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = buffer.get(offset++);
+				delta |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while (b < 0);
+			candidate += delta;
+			rank++;
+		}
+		int value = buffer.get((int) (valuesStart + rank / 4)) >>> (rank % 4 * 2) & 3;
+		return value - 1;
+	}
+}
@@ -0,0 +1,345 @@
+package gj.forza4.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * La classe EndgameGenerator costruisce il database letto da
+ * {@link EndgameDatabase}. A partire da alcune posizioni iniziali, enumera
+ * tutte le posizioni raggiungibili che hanno al massimo un certo numero di
+ * celle vuote e nessun allineamento, e le risolve con l'analisi retrograda:
+ * prima le posizioni con la board piena, poi quelle con una cella vuota, e
+ * cos via, ricavando l'esito di ogni posizione da quelli delle posizioni
+ * successive, che sono gi stati calcolati.
+ * <p>
+ * Su una board 7x6 le posizioni con poche celle vuote sono troppe per
+ * enumerarle tutte, quindi si parte dalle posizioni di una o pi partite
+ * giocate fino a poco prima della fine. Su board piccole si pu partire dalla
+ * board vuota.
+ * <p>
+ * Uso: {@code EndgameGenerator <righe> <colonne> <celle vuote> <file> [mosse...]}
+ *
+ * @author Ubaldo Puocci
+ */
+public class EndgameGenerator {
+
+	/** Altezza della board. */
+	private final int height;
+
+	/** Larghezza della board. */
+	private final int width;
+
+	/** Numero massimo di celle vuote delle posizioni salvate. */
+	private final int maxEmpty;
+
+	/** Operazioni sui bitboard per le board di queste dimensioni. */
+	private final BatchEvaluator bits;
+
+	/** Bitboard con la cella pi bassa di ogni colonna. */
+	private final long bottomMask;
+
+	/**
+	 * Le posizioni enumerate, divise per numero di celle vuote: ad ogni
+	 * chiave  associato il bitboard di chi muove.
+	 */
+	private final List<Map<Long, Long>> layers;
+
+	/** Le chiavi delle posizioni con troppe celle vuote gi visitate. */
+	private final Set<Long> visited = new HashSet<Long>();
+
+	/** Gli esiti delle posizioni, divisi per numero di celle vuote. */
+	private final List<Map<Long, Byte>> values;
+
+	/**
+	 * Istanzia un nuovo EndgameGenerator.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param maxEmpty
+	 *            il numero massimo di celle vuote delle posizioni salvate
+	 */
+	public EndgameGenerator(int height, int width, int maxEmpty) {
+		if (width * (height + 1) > Long.SIZE) {
+			throw new IllegalArgumentException("Board too large for an endgame database");
+		}
+		this.height = height;
+		this.width = width;
+		this.maxEmpty = Math.min(maxEmpty, height * width);
+		this.bits = new ScalarBatchEvaluator(height, width);
+		long bottom = 0;
+		for (int x = 0; x < width; x++) {
+			bottom |= 1L << (x * (height + 1));
+		}
+		this.bottomMask = bottom;
+		this.layers = new ArrayList<Map<Long, Long>>();
+		this.values = new ArrayList<Map<Long, Byte>>();
+		for (int i = 0; i <= this.maxEmpty; i++) {
+			layers.add(new HashMap<Long, Long>());
+			values.add(new HashMap<Long, Byte>());
+		}
+	}
+
+	/**
+	 * Aggiunge le posizioni raggiungibili da una posizione iniziale. La
+	 * posizione non deve contenere allineamenti.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 */
+	public void addSeed(long current, long mask) {
+		enumerate(current, mask);
+	}
+
+	/**
+	 * Enumera le posizioni raggiungibili, senza entrare in quelle in cui un
+	 * giocatore ha gi vinto.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 */
+	private void enumerate(long current, long mask) {
+		int empty = height * width - Long.bitCount(mask);
+		Long key = current + mask;
+		if (empty <= maxEmpty) {
+			if (layers.get(empty).put(key, current) != null) {
+				return;
+			}
+		} else if (!visited.add(key)) {
+			return;
+		}
+		long possible = (mask + bottomMask) & bits.boardMask;
+		long wins = bits.threatCells(current, mask);
+		while (possible != 0) {
+			long move = possible & -possible;
+			possible ^= move;
+			if ((move & wins) == 0) {
+				enumerate(current ^ mask, mask | move);
+			}
+		}
+	}
+
+	/**
+	 * Calcola l'esito di una posizione a partire da quelli delle posizioni
+	 * con una cella vuota in meno.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @param empty
+	 *            il numero di celle vuote
+	 * @return 1 se chi muove vince, -1 se perde, 0 se la partita finisce pari.
+	 */
+	private int solve(long current, long mask, int empty) {
+		long possible = (mask + bottomMask) & bits.boardMask;
+		if ((bits.threatCells(current, mask) & possible) != 0) {
+			return 1;
+		}
+		if (empty == 0) {
+			return 0;
+		}
+		Map<Long, Byte> next = values.get(empty - 1);
+		int best = -1;
+		while (possible != 0 && best < 1) {
+			long move = possible & -possible;
+			possible ^= move;
+			long child = current ^ mask;
+			best = Math.max(best, -next.get(child + (mask | move)));
+		}
+		return best;
+	}
+
+	/**
+	 * Scrive il database su un file temporaneo, che poi sostituisce quello
+	 * indicato.
+	 *
+	 * @param file
+	 *            il file da scrivere
+	 * @param keys
+	 *            le chiavi ordinate
+	 * @param results
+	 *            gli esiti, nello stesso ordine delle chiavi
+	 * @throws IOException
+	 *             se il file non pu essere scritto.
+	 */
+	private void write(Path file, long[] keys, byte[] results) throws IOException {
+		int count = keys.length;
+		int blockCount = (count + EndgameDatabase.BLOCK_SIZE - 1) / EndgameDatabase.BLOCK_SIZE;
+		ByteBuffer index = ByteBuffer.allocate(blockCount * EndgameDatabase.INDEX_ENTRY_BYTES);
+		ByteBuffer data = ByteBuffer.allocate(Math.max(16, count * 10));
+		for (int i = 0; i < count; i++) {
+			if (i % EndgameDatabase.BLOCK_SIZE == 0) {
+				index.putLong(keys[i]);
+				index.putInt(data.position());
+			} else {
+				long delta = keys[i] - keys[i - 1];
+				while ((delta & ~0x7FL) != 0) {
+					data.put((byte) (delta & 0x7F | 0x80));
+					delta >>>= 7;
+				}
+				data.put((byte) delta);
+			}
+		}
+		ByteBuffer packed = ByteBuffer.allocate((count + 3) / 4);
+		for (int i = 0; i < count; i++) {
+			int value = results[i] + 1;
+			packed.put(i / 4, (byte) (packed.get(i / 4) | value << (i % 4 * 2)));
+		}
+		ByteBuffer header = ByteBuffer.allocate(EndgameDatabase.HEADER_BYTES);
+		header.putInt(EndgameDatabase.MAGIC);
+		header.put((byte) height);
+		header.put((byte) width);
+		header.put((byte) maxEmpty);
+		header.putInt(count);
+		header.putInt(blockCount);
+		header.putLong(EndgameDatabase.HEADER_BYTES + index.capacity() + data.position());
+		header.flip();
+		index.flip();
+		data.flip();
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer[] buffers = { header, index, data, packed };
+			do {
+				channel.write(buffers);
+			} while (packed.hasRemaining());
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Risolve le posizioni enumerate, dalla board piena all'indietro, e scrive
+	 * il database.
+	 *
+	 * @param file
+	 *            il file da scrivere
+	 * @return il numero di posizioni salvate.
+	 * @throws IOException
+	 *             se il file non pu essere scritto.
+	 */
+	public int generate(Path file) throws IOException {
+		int count = 0;
+		for (Map<Long, Long> layer : layers) {
+			count += layer.size();
+		}
+		long[] keys = new long[count];
+		byte[] results = new byte[count];
+		Map<Long, Byte> all = new HashMap<Long, Byte>(count * 2);
+		for (int empty = 0; empty <= maxEmpty; empty++) {
+			Map<Long, Byte> solved = values.get(empty);
+			for (Map.Entry<Long, Long> entry : layers.get(empty).entrySet()) {
+				solved.put(entry.getKey(), (byte) solve(entry.getValue(), entry.getKey() - entry.getValue(), empty));
+			}
+			all.putAll(solved);
+			if (empty > 0) {
+				// gli esiti delle posizioni successive non servono pi
+				values.get(empty - 1).clear();
+				layers.get(empty - 1).clear();
+			}
+		}
+		int i = 0;
+		for (Long key : all.keySet()) {
+			keys[i++] = key;
+		}
+		Arrays.sort(keys);
+		for (i = 0; i < count; i++) {
+			results[i] = all.get(keys[i]);
+		}
+		write(file, keys, results);
+		return count;
+	}
+
+	/**
+	 * Genera un database dalla riga di comando e ne controlla un campione con
+	 * il {@link Solver}.
+	 *
+	 * @param args
+	 *            righe, colonne, numero massimo di celle vuote, file da
+	 *            scrivere e le mosse delle posizioni iniziali, una stringa di
+	 *            colonne per posizione.
+	 * @throws IOException
+	 *             se il file non pu essere scritto.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 4) {
+			System.err.println("Usage: EndgameGenerator <rows> <cols> <max empty> <file> [moves...]");
+			System.exit(1);
+		}
+		int height = Integer.parseInt(args[0]);
+		int width = Integer.parseInt(args[1]);
+		int maxEmpty = Integer.parseInt(args[2]);
+		Path file = Paths.get(args[3]);
+		EndgameGenerator generator = new EndgameGenerator(height, width, maxEmpty);
+		List<String> seeds = new ArrayList<String>(Arrays.asList(args).subList(4, args.length));
+		if (seeds.isEmpty()) {
+			seeds.add("");
+		}
+		long start = System.nanoTime();
+		for (String moves : seeds) {
+			Board board = new Board(height, width);
+			for (int i = 0; i < moves.length(); i++) {
+				board.makeMove(moves.charAt(i) - '0', i % 2 == 0);
+			}
+			long current = moves.length() % 2 == 0 ? board.getPlayerBits() : board.getAiBits();
+			generator.addSeed(current, board.getPlayerBits() | board.getAiBits());
+		}
+		int count = generator.generate(file);
+		System.out.println(count + " positions, " + Files.size(file) + " bytes, "
+				+ (System.nanoTime() - start) / 1000000 + " ms");
+
+		EndgameDatabase database = EndgameDatabase.open(file);
+		Solver solver = new Solver(height, width, 20);
+		Random random = new Random(0);
+		int checked = 0;
+		int mismatches = 0;
+		for (String moves : seeds) {
+			for (int game = 0; game < 1000; game++) {
+				// partite casuali dalla posizione iniziale fino alla fine
+				Board board = new Board(height, width);
+				for (int i = 0; i < moves.length(); i++) {
+					board.makeMove(moves.charAt(i) - '0', i % 2 == 0);
+				}
+				boolean first = moves.length() % 2 == 0;
+				while (board.getWinner() == Board.NOBODY && !board.isBoardFull()) {
+					long current = first ? board.getPlayerBits() : board.getAiBits();
+					long mask = board.getPlayerBits() | board.getAiBits();
+					if (board.getEmptyCells() <= generator.maxEmpty) {
+						int expected = solver.solveWeak(current, mask);
+						if (database.probe(current, mask) != expected) {
+							mismatches++;
+						}
+						checked++;
+					}
+					int colonna;
+					do {
+						colonna = random.nextInt(width);
+					} while (!board.isValidMove(colonna));
+					board.makeMove(colonna, first);
+					first = !first;
+				}
+			}
+		}
+		System.out.println(checked + " positions checked, " + mismatches + " mismatches");
+	}
+}
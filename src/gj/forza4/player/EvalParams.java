@@ -0,0 +1,170 @@
+package gj.forza4.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * La classe EvalParams contiene i pesi usati da {@link Evaluator} per valutare
+ * le foglie della ricerca. I pesi vengono letti da un file di properties, di
+ * solito prodotto da {@link Tuner}, con una riga {@code nome=valore} per ogni
+ * peso. I pesi sono espressi nella stessa scala dei punteggi di vittoria e
+ * sconfitta di {@link Puocci}, che restano fissi e fanno da riferimento.
+ *
+ * @author Ubaldo Puocci
+ */
+public class EvalParams {
+
+	/**
+	 * Propriet di sistema con il percorso del file dei pesi caricato da
+	 * {@link Puocci#start(int, int)}.
+	 */
+	public static final String FILE_PROPERTY = "forza4.params";
+
+	/** Nomi dei pesi, nell'ordine usato da {@link #get(int)}. */
+	static final String[] NAMES = { "center", "two", "three" };
+
+	/** Indice del peso di ogni segnalino nella colonna centrale. */
+	static final int CENTER = 0;
+
+	/** Indice del peso di ogni sequenza con due segnalini e due celle vuote. */
+	static final int TWO = 1;
+
+	/** Indice del peso di ogni sequenza con tre segnalini e una cella vuota. */
+	static final int THREE = 2;
+
+	/** I valori dei pesi. */
+	private final double[] values;
+
+	/**
+	 * Istanzia un nuovo EvalParams con tutti i pesi a zero: le foglie non
+	 * decise valgono quanto un pareggio.
+	 */
+	public EvalParams() {
+		this(new double[NAMES.length]);
+	}
+
+	/**
+	 * Istanzia un nuovo EvalParams con i valori passati come parametro.
+	 *
+	 * @param values
+	 *            i valori dei pesi, nell'ordine di {@link #NAMES}
+	 */
+	EvalParams(double[] values) {
+		if (values.length != NAMES.length) {
+			throw new IllegalArgumentException("Expected " + NAMES.length + " parameters, got " + values.length);
+		}
+		this.values = values.clone();
+	}
+
+	/**
+	 * Ritorna il valore del peso.
+	 *
+	 * @param index
+	 *            l'indice del peso
+	 * @return il valore del peso.
+	 */
+	double get(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Ritorna una copia dei valori dei pesi.
+	 *
+	 * @return i valori, nell'ordine di {@link #NAMES}.
+	 */
+	double[] toArray() {
+		return values.clone();
+	}
+
+	/**
+	 * Carica i pesi dal file indicato dalla propriet di sistema
+	 * {@link #FILE_PROPERTY}. Se la propriet non  impostata ritorna i pesi
+	 * di default. Un file indicato ma mancante o malformato  un errore: non
+	 * si gioca con pesi diversi da quelli richiesti senza accorgersene.
+	 *
+	 * @return i pesi caricati.
+	 * @throws UncheckedIOException
+	 *             se il file non pu essere letto.
+	 * @throws IllegalArgumentException
+	 *             se un peso non  un numero.
+	 */
+	public static EvalParams loadDefault() {
+		String file = System.getProperty(FILE_PROPERTY);
+		if (file != null) {
+			try {
+				return load(Paths.get(file));
+			} catch (IOException e) {
+				throw new UncheckedIOException("Cannot read evaluation parameters " + file, e);
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("Malformed evaluation parameters " + file, e);
+			}
+		}
+		return new EvalParams();
+	}
+
+	/**
+	 * Carica i pesi dal file passato come parametro. I pesi mancanti valgono
+	 * zero.
+	 *
+	 * @param file
+	 *            il file da leggere
+	 * @return i pesi caricati.
+	 * @throws IOException
+	 *             se il file non pu essere letto.
+	 * @throws IllegalArgumentException
+	 *             se un peso non  un numero.
+	 */
+	public static EvalParams load(Path file) throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		}
+		double[] values = new double[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			values[i] = Double.parseDouble(properties.getProperty(NAMES[i], "0"));
+		}
+		return new EvalParams(values);
+	}
+
+	/**
+	 * Salva i pesi nel file passato come parametro.
+	 *
+	 * @param file
+	 *            il file da scrivere
+	 * @throws IOException
+	 *             se il file non pu essere scritto.
+	 */
+	public void save(Path file) throws IOException {
+		try (OutputStream out = Files.newOutputStream(file)) {
+			toProperties().store(out, "Forza4 evaluation parameters");
+		}
+	}
+
+	/**
+	 * Converte i pesi in properties.
+	 *
+	 * @return le properties con un valore per ogni peso.
+	 */
+	Properties toProperties() {
+		Properties properties = new Properties();
+		for (int i = 0; i < NAMES.length; i++) {
+			properties.setProperty(NAMES[i], Double.toString(values[i]));
+		}
+		return properties;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < NAMES.length; i++) {
+			builder.append(i == 0 ? "" : " ").append(NAMES[i]).append('=').append(values[i]);
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,100 @@
+package gj.forza4.player;
+
+/**
+ * La classe Evaluator assegna un punteggio euristico agli stati della board
+ * in cui la ricerca si ferma senza che la partita sia decisa. Il punteggio 
+ * la differenza tra le caratteristiche dell'AI e quelle del giocatore, pesate
+ * con i valori di {@link EvalParams}: i segnalini nella colonna centrale e le
+ * sequenze ancora completabili con due o tre segnalini.
+ *
+ * @author Ubaldo Puocci
+ */
+class Evaluator {
+
+	/** Istanza della classe Board da valutare. */
+	private final Board board;
+
+	/** I pesi della valutazione. */
+	private final EvalParams params;
+
+	/**
+	 * Tutte le sequenze di quattro celle della board, codificate come in
+	 * {@link ThreatAnalyzer}.
+	 */
+	private final int[][] windows;
+
+	/** Booleano che indica se almeno un peso  diverso da zero. */
+	private final boolean enabled;
+
+	/**
+	 * Istanzia un nuovo Evaluator.
+	 *
+	 * @param board
+	 *            la board da valutare
+	 * @param params
+	 *            i pesi della valutazione
+	 */
+	Evaluator(Board board, EvalParams params) {
+		this.board = board;
+		this.params = params;
+		this.windows = Tables.get(board.getHeight(), board.getWidth()).windows;
+		boolean enabled = false;
+		for (double value : params.toArray()) {
+			enabled |= value != 0;
+		}
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Valuta lo stato corrente della board dal punto di vista dell'AI.
+	 *
+	 * @return il punteggio euristico, positivo se l'AI  in vantaggio.
+	 */
+	double evaluate() {
+		if (!enabled) {
+			return 0;
+		}
+		int height = board.getHeight();
+		int center = board.getWidth() / 2;
+		double score = 0;
+		for (int y = 0; y < board.getColumnCount(center); y++) {
+			score += board.getCell(center, y) == Board.AI ? params.get(EvalParams.CENTER)
+					: -params.get(EvalParams.CENTER);
+		}
+		for (int[] window : windows) {
+			int ai = 0;
+			int player = 0;
+			for (int cell : window) {
+				byte content = board.getCell(cell / height, cell % height);
+				if (content == Board.AI) {
+					ai++;
+				} else if (content == Board.PLAYER) {
+					player++;
+				}
+			}
+			if (player == 0) {
+				score += weight(ai);
+			} else if (ai == 0) {
+				score -= weight(player);
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * Ritorna il peso di una sequenza completabile in base al numero di
+	 * segnalini che contiene.
+	 *
+	 * @param count
+	 *            il numero di segnalini nella sequenza
+	 * @return il peso della sequenza.
+	 */
+	private double weight(int count) {
+		if (count == 2) {
+			return params.get(EvalParams.TWO);
+		} else if (count == 3) {
+			return params.get(EvalParams.THREE);
+		}
+		return 0;
+	}
+}
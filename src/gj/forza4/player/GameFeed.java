@@ -0,0 +1,252 @@
+package gj.forza4.player;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * La classe GameFeed  il canale su cui una partita pubblica le proprie
+ * mosse per gli spettatori di un {@link Broadcaster}. Ogni evento, l'inizio
+ * di una partita o una mossa, riceve un numero di sequenza e viene scritto in
+ * un buffer circolare di {@link #RING_SIZE} elementi, da cui i thread del
+ * Broadcaster lo leggono senza bloccare chi pubblica. Ogni elemento contiene
+ * anche il proprio numero di sequenza, quindi chi legge riconosce un elemento
+ * gi sovrascritto e manda allo spettatore una fotografia della partita.
+ * Anche le fotografie vengono lette dal buffer circolare, che contiene sempre
+ * tutta la partita corrente: una partita ha al massimo 255 mosse.
+ * <p>
+ * Ogni mossa deve seguire l'inizio di una partita, e una partita non pu
+ * avere pi mosse delle celle della board. Un canale viene alimentato da un
+ * solo {@link BroadcastingPlayer}, e dopo {@link Broadcaster#close(int)} non
+ * accetta pi eventi.
+ *
+ * @author Ubaldo Puocci
+ */
+public class GameFeed {
+
+	/** Numero di eventi conservati nel buffer circolare. */
+	static final int RING_SIZE = 1024;
+
+	/** Tipo di evento: una mossa. */
+	static final int KIND_MOVE = Broadcaster.MOVE;
+
+	/** Tipo di evento: l'inizio di una partita. */
+	static final int KIND_START = Broadcaster.START;
+
+	/** Flag acceso nella colonna di una mossa se la mossa  del giocatore. */
+	static final int PLAYER_FLAG = 0x80;
+
+	/** Il Broadcaster che distribuisce gli eventi. */
+	private final Broadcaster broadcaster;
+
+	/** Identificativo della partita. */
+	private final int id;
+
+	/**
+	 * Buffer circolare degli eventi: ogni elemento contiene il numero di
+	 * sequenza, il tipo e i dati dell'evento.
+	 */
+	private final AtomicLongArray ring = new AtomicLongArray(RING_SIZE);
+
+	/** Numero di sequenza del prossimo evento. */
+	private volatile long sequence;
+
+	/** Numero di mosse che la partita corrente pu ancora ricevere. */
+	private int free;
+
+	/** Booleano che indica se un BroadcastingPlayer alimenta il canale. */
+	private boolean attached;
+
+	/** Booleano che indica se il canale  stato chiuso. */
+	private boolean closed;
+
+	/**
+	 * Istanzia un nuovo GameFeed.
+	 *
+	 * @param broadcaster
+	 *            il Broadcaster che distribuisce gli eventi
+	 * @param id
+	 *            l'identificativo della partita
+	 */
+	GameFeed(Broadcaster broadcaster, int id) {
+		this.broadcaster = broadcaster;
+		this.id = id;
+	}
+
+	/**
+	 * Ritorna l'identificativo della partita.
+	 *
+	 * @return l'identificativo.
+	 */
+	public int getId() {
+		return id;
+	}
+
+	/**
+	 * Pubblica l'inizio di una nuova partita.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @return il numero di sequenza dell'evento.
+	 * @throws IllegalStateException
+	 *             se il canale  stato chiuso.
+	 */
+	public synchronized long start(int height, int width) {
+		if (height * width > 0xFF) {
+			throw new IllegalArgumentException("Board " + height + "x" + width + " cannot be broadcast");
+		}
+		checkOpen();
+		free = height * width;
+		return append(KIND_START, height << 8 | width);
+	}
+
+	/**
+	 * Pubblica una mossa della partita corrente.
+	 *
+	 * @param colonna
+	 *            la colonna giocata
+	 * @param player
+	 *            true se la mossa  del giocatore, false se  dell'AI
+	 * @return il numero di sequenza dell'evento.
+	 * @throws IllegalStateException
+	 *             se il canale  stato chiuso, se non  iniziata una partita
+	 *             o se la board  gi piena.
+	 */
+	public synchronized long publish(int colonna, boolean player) {
+		checkOpen();
+		if (free == 0) {
+			throw new IllegalStateException("No room for a move in game " + id);
+		}
+		free--;
+		return append(KIND_MOVE, colonna | (player ? PLAYER_FLAG : 0));
+	}
+
+	/**
+	 * Riserva il canale a un BroadcastingPlayer, cos ogni mossa viene
+	 * pubblicata una volta sola.
+	 *
+	 * @throws IllegalStateException
+	 *             se il canale  gi alimentato da un altro Player.
+	 */
+	synchronized void attach() {
+		if (attached) {
+			throw new IllegalStateException("Game " + id + " is already broadcast by another player");
+		}
+		attached = true;
+	}
+
+	/**
+	 * Chiude il canale: gli eventi gi pubblicati vengono ancora mandati agli
+	 * spettatori, ma non se ne possono pubblicare altri.
+	 */
+	synchronized void close() {
+		closed = true;
+	}
+
+	/**
+	 * Controlla che il canale non sia stato chiuso.
+	 *
+	 * @throws IllegalStateException
+	 *             se il canale  stato chiuso.
+	 */
+	private void checkOpen() {
+		if (closed) {
+			throw new IllegalStateException("Game " + id + " is closed");
+		}
+	}
+
+	/**
+	 * Scrive un evento nel buffer circolare e avvisa il Broadcaster.
+	 *
+	 * @param kind
+	 *            il tipo dell'evento
+	 * @param data
+	 *            i dati dell'evento
+	 * @return il numero di sequenza dell'evento.
+	 */
+	private long append(int kind, int data) {
+		long seq = sequence;
+		ring.set((int) (seq & (RING_SIZE - 1)), seq << 24 | kind << 16 | data);
+		sequence = seq + 1;
+		broadcaster.signal(this);
+		return seq;
+	}
+
+	/**
+	 * Ritorna il numero di sequenza del prossimo evento.
+	 *
+	 * @return il numero di sequenza.
+	 */
+	long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Legge un evento dal buffer circolare.
+	 *
+	 * @param seq
+	 *            il numero di sequenza dell'evento, gi pubblicato
+	 * @return l'evento, o -1 se  gi stato sovrascritto.
+	 */
+	long entry(long seq) {
+		long entry = ring.get((int) (seq & (RING_SIZE - 1)));
+		return entry >>> 24 == seq ? entry : -1;
+	}
+
+	/**
+	 * Scrive una fotografia della partita corrente, se c' spazio nel buffer.
+	 * La partita viene letta dal buffer circolare senza bloccare chi
+	 * pubblica: si cerca l'ultimo evento START e si copiano le mosse
+	 * successive, che sono al massimo quante le celle della board e quindi
+	 * sono tutte nel buffer. Se nel frattempo un elemento viene sovrascritto,
+	 * la fotografia viene scartata e riletta.
+	 *
+	 * @param out
+	 *            il buffer su cui scrivere
+	 * @return il numero di sequenza del primo evento successivo alla
+	 *         fotografia, o -1 se il buffer non ha abbastanza spazio.
+	 */
+	long snapshot(ByteBuffer out) {
+		int position = out.position();
+		while (true) {
+			long next = sequence;
+			long oldest = Math.max(0, next - RING_SIZE);
+			long start = next - 1;
+			long entry = 0;
+			while (start >= oldest && (entry = entry(start)) >= 0 && (entry >>> 16 & 0xFF) != KIND_START) {
+				start--;
+			}
+			if (entry < 0) {
+				// elemento sovrascritto mentre si cercava l'inizio
+				continue;
+			}
+			int height = 0;
+			int width = 0;
+			if (start >= oldest) {
+				height = (int) (entry >>> 8 & 0xFF);
+				width = (int) (entry & 0xFF);
+			} else {
+				// nessuna partita iniziata
+				start = next - 1;
+			}
+			int count = (int) (next - 1 - start);
+			if (out.remaining() < Broadcaster.SNAPSHOT_BYTES + count) {
+				return -1;
+			}
+			out.put(Broadcaster.SNAPSHOT);
+			out.putInt(id);
+			out.putInt((int) next);
+			out.put((byte) height);
+			out.put((byte) width);
+			out.put((byte) count);
+			for (int i = 1; i <= count && (entry = entry(start + i)) >= 0; i++) {
+				out.put((byte) entry);
+			}
+			if (entry >= 0) {
+				return next;
+			}
+			out.position(position);
+		}
+	}
+}
@@ -0,0 +1,260 @@
+package gj.forza4.player;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+/**
+ * La classe GameJournal salva le partite giocate in un registro binario a
+ * cui si aggiunge solo in coda. Il registro  una cartella di segmenti: ogni
+ * apertura inizia un segmento nuovo, e un segmento viene chiuso quando supera
+ * {@link #SEGMENT_BYTES} byte, cos un segmento scritto a met da un processo
+ * interrotto non viene mai ripreso.
+ * <p>
+ * Ogni partita  un record con il numero di mosse (2 byte), l'altezza e la
+ * larghezza della board, un byte di flag, le colonne giocate, due per byte
+ * (una per nibble), e il CRC32 di tutto il record. Una partita 6x7 completa
+ * occupa quindi al massimo 30 byte. I record vengono accumulati in un buffer
+ * e scritti sul {@link FileChannel} in blocco; {@link JournalReader} si ferma
+ * al primo record con il CRC sbagliato, quindi un'interruzione durante una
+ * scrittura perde al massimo le partite non ancora scritte.
+ *
+ * @author Ubaldo Puocci
+ */
+public class GameJournal implements Closeable {
+
+	/** Numero che apre ogni segmento. */
+	static final int MAGIC = 0x46344A31;
+
+	/** Dimensione oltre la quale si passa al segmento successivo, in byte. */
+	static final long SEGMENT_BYTES = 64L << 20;
+
+	/** Dimensione del buffer di scrittura, in byte. */
+	static final int BUFFER_BYTES = 256 << 10;
+
+	/** Dimensione dei campi che precedono le mosse in un record. */
+	static final int HEADER_BYTES = 5;
+
+	/** Flag acceso se la prima mossa della partita  del giocatore. */
+	static final byte PLAYER_FIRST = 1;
+
+	/** Cartella dei segmenti. */
+	private final Path directory;
+
+	/** Buffer in cui vengono accumulati i record. */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_BYTES);
+
+	/** Calcolatore dei CRC dei record. */
+	private final CRC32 crc = new CRC32();
+
+	/** Segmento su cui si sta scrivendo. */
+	private FileChannel channel;
+
+	/** Numero del segmento su cui si sta scrivendo. */
+	private int segment;
+
+	/** Numero di byte gi scritti nel segmento corrente. */
+	private long written;
+
+	/**
+	 * Apre il registro nella cartella indicata, creandola se non esiste. Le
+	 * partite vengono scritte in un segmento nuovo.
+	 *
+	 * @param directory
+	 *            la cartella dei segmenti
+	 * @throws IOException
+	 *             se la cartella o il segmento non possono essere creati.
+	 */
+	public GameJournal(Path directory) throws IOException {
+		this.directory = directory;
+		Files.createDirectories(directory);
+		for (Path file : JournalReader.segments(directory)) {
+			segment = Math.max(segment, JournalReader.segmentNumber(file) + 1);
+		}
+		openSegment();
+	}
+
+	/**
+	 * Ritorna il nome del file di un segmento.
+	 *
+	 * @param number
+	 *            il numero del segmento
+	 * @return il nome del file.
+	 */
+	static String segmentName(int number) {
+		return String.format("journal-%08d.f4j", number);
+	}
+
+	/**
+	 * Crea il segmento successivo e ci scrive l'intestazione.
+	 *
+	 * @throws IOException
+	 *             se il segmento non pu essere creato.
+	 */
+	private void openSegment() throws IOException {
+		channel = FileChannel.open(directory.resolve(segmentName(segment)), StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE);
+		buffer.putInt(MAGIC);
+		written = 0;
+	}
+
+	/**
+	 * Aggiunge una partita al registro.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board, al massimo 16
+	 * @param playerFirst
+	 *            true se la prima mossa  del giocatore, false se  dell'AI
+	 * @param moves
+	 *            le colonne giocate, in ordine
+	 * @param count
+	 *            il numero di mosse
+	 * @throws IOException
+	 *             se il buffer non pu essere scritto sul segmento.
+	 */
+	public synchronized void append(int height, int width, boolean playerFirst, byte[] moves, int count)
+			throws IOException {
+		if (width > 16 || count > 0xFFFF) {
+			throw new IllegalArgumentException("Game cannot be journaled");
+		}
+		int size = HEADER_BYTES + (count + 1) / 2 + Integer.BYTES;
+		if (buffer.remaining() < size) {
+			writeBuffer();
+		}
+		int start = buffer.position();
+		buffer.putShort((short) count);
+		buffer.put((byte) height);
+		buffer.put((byte) width);
+		buffer.put(playerFirst ? PLAYER_FIRST : 0);
+		for (int i = 0; i < count; i += 2) {
+			int low = moves[i];
+			int high = i + 1 < count ? moves[i + 1] : 0;
+			buffer.put((byte) (low | high << 4));
+		}
+		ByteBuffer record = buffer.duplicate();
+		record.position(start);
+		record.limit(buffer.position());
+		crc.reset();
+		crc.update(record);
+		buffer.putInt((int) crc.getValue());
+	}
+
+	/**
+	 * Scrive sul segmento le partite accumulate nel buffer, passando al
+	 * segmento successivo se quello corrente  pieno.
+	 *
+	 * @throws IOException
+	 *             se la scrittura fallisce.
+	 */
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			written += channel.write(buffer);
+		}
+		buffer.clear();
+		if (written >= SEGMENT_BYTES) {
+			channel.force(false);
+			channel.close();
+			segment++;
+			openSegment();
+		}
+	}
+
+	/**
+	 * Scrive le partite accumulate e le forza sul disco.
+	 *
+	 * @throws IOException
+	 *             se la scrittura fallisce.
+	 */
+	public synchronized void sync() throws IOException {
+		writeBuffer();
+		channel.force(false);
+	}
+
+	/**
+	 * Scrive le partite accumulate e chiude il segmento.
+	 *
+	 * @throws IOException
+	 *             se la scrittura fallisce.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (channel.isOpen()) {
+			sync();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Scrive partite casuali in un registro e poi le rilegge, misurando la
+	 * velocit delle due operazioni.
+	 *
+	 * @param args
+	 *            la cartella del registro e il numero di partite.
+	 * @throws IOException
+	 *             se il registro non pu essere scritto o letto.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("Usage: GameJournal <directory> <games>");
+			System.exit(1);
+		}
+		Path directory = Paths.get(args[0]);
+		int games = Integer.parseInt(args[1]);
+		int height = 6;
+		int width = 7;
+		Random random = new Random(0);
+		byte[] moves = new byte[height * width];
+		long start = System.nanoTime();
+		long total = 0;
+		try (GameJournal journal = new GameJournal(directory)) {
+			Board board = new Board(height, width);
+			for (int game = 0; game < games; game++) {
+				boolean playerFirst = random.nextBoolean();
+				int count = 0;
+				while (!board.hasWinner() && !board.isBoardFull()) {
+					int colonna;
+					do {
+						colonna = random.nextInt(width);
+					} while (!board.isValidMove(colonna));
+					board.makeMove(colonna, playerFirst == (count % 2 == 0));
+					moves[count++] = (byte) colonna;
+				}
+				journal.append(height, width, playerFirst, moves, count);
+				total += count;
+				while (count > 0) {
+					count--;
+					board.undoMove(moves[count], playerFirst == (count % 2 == 0));
+				}
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		System.out.println("written " + games + " games, " + total + " moves, "
+				+ games * 60000000000L / Math.max(1, elapsed) + " games/min");
+
+		start = System.nanoTime();
+		final long[] replayed = new long[2];
+		long read = new JournalReader(directory).replay(new JournalReader.Visitor() {
+
+			@Override
+			public void visit(Board board, byte[] moves, int count, boolean playerFirst) {
+				replayed[0] += count;
+				if (board.hasWinner()) {
+					replayed[1]++;
+				}
+			}
+		});
+		elapsed = System.nanoTime() - start;
+		System.out.println("replayed " + read + " games, " + replayed[0] + " moves, " + replayed[1] + " won, "
+				+ read * 1000000000L / Math.max(1, elapsed) + " games/s");
+	}
+}
@@ -0,0 +1,188 @@
+package gj.forza4.player;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * La classe JournalReader rilegge le partite salvate da {@link GameJournal}.
+ * I segmenti vengono mappati in memoria e letti in ordine; la lettura di un
+ * segmento si ferma al primo record incompleto o con il CRC sbagliato, che
+ * pu essere solo la coda lasciata da un processo interrotto.
+ * <p>
+ * Ogni partita viene rigiocata su una {@link Board} riusata per tutte le
+ * partite con le stesse dimensioni: dopo la visita le mosse vengono annullate,
+ * quindi la rilettura non alloca niente per partita.
+ *
+ * @author Ubaldo Puocci
+ */
+public class JournalReader {
+
+	/**
+	 * L'interfaccia Visitor riceve le partite rilette dal registro.
+	 */
+	public interface Visitor {
+
+		/**
+		 * Visita una partita. La board e l'array delle mosse vengono riusati
+		 * per le partite successive, quindi vanno copiati se servono dopo la
+		 * visita.
+		 *
+		 * @param board
+		 *            la board con tutte le mosse della partita
+		 * @param moves
+		 *            le colonne giocate, in ordine
+		 * @param count
+		 *            il numero di mosse
+		 * @param playerFirst
+		 *            true se la prima mossa  del giocatore
+		 */
+		void visit(Board board, byte[] moves, int count, boolean playerFirst);
+	}
+
+	/** Cartella dei segmenti. */
+	private final Path directory;
+
+	/** Board riusate, per dimensioni. */
+	private final Map<Integer, Board> boards = new HashMap<Integer, Board>();
+
+	/** Mosse della partita che si sta rileggendo. */
+	private byte[] moves = new byte[64];
+
+	/** Calcolatore dei CRC dei record. */
+	private final CRC32 crc = new CRC32();
+
+	/**
+	 * Istanzia un nuovo JournalReader.
+	 *
+	 * @param directory
+	 *            la cartella dei segmenti
+	 */
+	public JournalReader(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Ritorna i segmenti di un registro, in ordine.
+	 *
+	 * @param directory
+	 *            la cartella dei segmenti
+	 * @return i file dei segmenti.
+	 * @throws IOException
+	 *             se la cartella non pu essere letta.
+	 */
+	static List<Path> segments(Path directory) throws IOException {
+		List<Path> segments = new ArrayList<Path>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*.f4j")) {
+			for (Path file : stream) {
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Ritorna il numero di un segmento.
+	 *
+	 * @param file
+	 *            il file del segmento
+	 * @return il numero del segmento.
+	 */
+	static int segmentNumber(Path file) {
+		String name = file.getFileName().toString();
+		return Integer.parseInt(name.substring("journal-".length(), name.length() - ".f4j".length()));
+	}
+
+	/**
+	 * Rilegge tutte le partite del registro.
+	 *
+	 * @param visitor
+	 *            il visitatore a cui passare le partite
+	 * @return il numero di partite rilette.
+	 * @throws IOException
+	 *             se un segmento non pu essere letto.
+	 */
+	public long replay(Visitor visitor) throws IOException {
+		long games = 0;
+		for (Path file : segments(directory)) {
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+				games += replay(buffer, visitor);
+			}
+		}
+		return games;
+	}
+
+	/**
+	 * Rilegge le partite di un segmento.
+	 *
+	 * @param buffer
+	 *            il contenuto del segmento
+	 * @param visitor
+	 *            il visitatore a cui passare le partite
+	 * @return il numero di partite rilette.
+	 */
+	private long replay(ByteBuffer buffer, Visitor visitor) {
+		if (buffer.remaining() < Integer.BYTES || buffer.getInt() != GameJournal.MAGIC) {
+			return 0;
+		}
+		long games = 0;
+		ByteBuffer record = buffer.duplicate();
+		while (buffer.remaining() >= GameJournal.HEADER_BYTES + Integer.BYTES) {
+			int start = buffer.position();
+			int count = buffer.getShort(start) & 0xFFFF;
+			int height = buffer.get(start + 2);
+			int width = buffer.get(start + 3);
+			boolean playerFirst = (buffer.get(start + 4) & GameJournal.PLAYER_FIRST) != 0;
+			int end = start + GameJournal.HEADER_BYTES + (count + 1) / 2;
+			if (end + Integer.BYTES > buffer.limit() || height <= 0 || width <= 0 || count > height * width) {
+				break;
+			}
+			record.limit(end).position(start);
+			crc.reset();
+			crc.update(record);
+			if ((int) crc.getValue() != buffer.getInt(end)) {
+				break;
+			}
+			if (moves.length < count) {
+				moves = new byte[count];
+			}
+			for (int i = 0; i < count; i++) {
+				int packed = buffer.get(start + GameJournal.HEADER_BYTES + i / 2);
+				moves[i] = (byte) ((i % 2 == 0 ? packed : packed >> 4) & 0xF);
+			}
+			Board board = boards.get(height << 8 | width);
+			if (board == null) {
+				board = new Board(height, width);
+				boards.put(height << 8 | width, board);
+			}
+			int played = 0;
+			while (played < count && moves[played] < width
+					&& board.makeMove(moves[played], playerFirst == (played % 2 == 0))) {
+				played++;
+			}
+			if (played == count) {
+				visitor.visit(board, moves, count, playerFirst);
+				games++;
+			}
+			while (played > 0) {
+				played--;
+				board.undoMove(moves[played], playerFirst == (played % 2 == 0));
+			}
+			buffer.position(end + Integer.BYTES);
+		}
+		return games;
+	}
+}
@@ -0,0 +1,201 @@
+package gj.forza4.player;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * La classe JournalingPlayer avvolge un altro {@link Player} e salva in un
+ * {@link GameJournal} tutte le mosse che passano per {@link #move()} e
+ * {@link #tellMove(int)}. Le mosse del Player avvolto sono quelle dell'AI,
+ * quelle ricevute con tellMove sono del giocatore. Una partita viene
+ * aggiunta al registro quando finisce, oppure all'inizio della successiva se
+ *  stata interrotta prima della fine.
+ * <p>
+ * Il registro accumula le partite in un buffer, quindi prima di terminare il
+ * processo va invocato {@link #close()}, che aggiunge la partita in corso e
+ * scrive il buffer sul disco. Se il Player viene usato da un gestore che non
+ * lo chiude, {@link #closeOnExit()} lo chiude quando la JVM termina. Il
+ * registro, che pu essere condiviso, resta aperto e va chiuso da chi lo ha
+ * creato.
+ * <p>
+ * Un errore di scrittura del registro non interrompe la partita: viene
+ * segnalato una volta su {@code System.err} e da quel momento il Player
+ * smette di registrare.
+ *
+ * @author Ubaldo Puocci
+ */
+public class JournalingPlayer implements Player, Closeable {
+
+	/** I Player da chiudere quando la JVM termina. */
+	private static final Set<JournalingPlayer> OPEN = new LinkedHashSet<JournalingPlayer>();
+
+	/** True se l'hook che chiude i Player di {@link #OPEN}  registrato. */
+	private static boolean hooked;
+
+	/** Il Player avvolto. */
+	private final Player player;
+
+	/** Il registro delle partite, che pu essere condiviso tra pi Player. */
+	private final GameJournal journal;
+
+	/** Board usata per riconoscere la fine della partita. */
+	private Board board;
+
+	/** Colonne giocate nella partita corrente. */
+	private byte[] moves;
+
+	/** Numero di mosse giocate nella partita corrente. */
+	private int count;
+
+	/** True se la prima mossa della partita  del giocatore. */
+	private boolean playerFirst;
+
+	/** True se una scrittura  fallita e il Player non registra pi. */
+	private boolean failed;
+
+	/**
+	 * Istanzia un nuovo JournalingPlayer.
+	 *
+	 * @param player
+	 *            il Player da avvolgere
+	 * @param journal
+	 *            il registro in cui salvare le partite
+	 */
+	public JournalingPlayer(Player player, GameJournal journal) {
+		this.player = player;
+		this.journal = journal;
+	}
+
+	/**
+	 * Fa invocare {@link #close()} quando la JVM termina, se prima non viene
+	 * invocato esplicitamente. Un solo hook chiude tutti i Player che lo hanno
+	 * chiesto.
+	 *
+	 * @return questo JournalingPlayer.
+	 */
+	public JournalingPlayer closeOnExit() {
+		synchronized (OPEN) {
+			if (!hooked) {
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+
+					@Override
+					public void run() {
+						closeAll();
+					}
+				}, "journal-close"));
+				hooked = true;
+			}
+			OPEN.add(this);
+		}
+		return this;
+	}
+
+	/**
+	 * Chiude i Player registrati con {@link #closeOnExit()} e non ancora
+	 * chiusi.
+	 */
+	private static void closeAll() {
+		List<JournalingPlayer> players;
+		synchronized (OPEN) {
+			players = new ArrayList<JournalingPlayer>(OPEN);
+		}
+		for (JournalingPlayer player : players) {
+			try {
+				player.close();
+			} catch (IOException e) {
+				System.err.println("Cannot flush game journal: " + e);
+			}
+		}
+	}
+
+	@Override
+	public synchronized void start(int nRighe, int nColonne) {
+		if (count > 0) {
+			append();
+		}
+		this.board = new Board(nRighe, nColonne);
+		this.moves = new byte[nRighe * nColonne];
+		player.start(nRighe, nColonne);
+	}
+
+	@Override
+	public int move() {
+		int colonna = player.move();
+		record(colonna, false);
+		return colonna;
+	}
+
+	@Override
+	public void tellMove(int colonna) {
+		player.tellMove(colonna);
+		record(colonna, true);
+	}
+
+	/**
+	 * Aggiunge al registro la partita in corso, se ha almeno una mossa, e
+	 * scrive sul disco le partite accumulate nel buffer del registro. Il
+	 * registro resta aperto. Il Player non viene pi chiuso da
+	 * {@link #closeOnExit()}.
+	 *
+	 * @throws IOException
+	 *             se la scrittura sul disco fallisce.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		synchronized (OPEN) {
+			OPEN.remove(this);
+		}
+		if (count > 0) {
+			append();
+		}
+		if (!failed) {
+			journal.sync();
+		}
+	}
+
+	/**
+	 * Registra una mossa e, se la partita  finita, la aggiunge al registro.
+	 *
+	 * @param colonna
+	 *            la colonna giocata
+	 * @param byPlayer
+	 *            true se la mossa  del giocatore, false se  dell'AI
+	 */
+	private synchronized void record(int colonna, boolean byPlayer) {
+		if (failed) {
+			return;
+		}
+		if (count == 0) {
+			playerFirst = byPlayer;
+		}
+		if (count < moves.length && board.makeMove(colonna, byPlayer)) {
+			moves[count++] = (byte) colonna;
+			if (board.hasWinner() || board.isBoardFull()) {
+				append();
+			}
+		}
+	}
+
+	/**
+	 * Aggiunge la partita corrente al registro e ne inizia una nuova sulla
+	 * stessa board. Se la scrittura fallisce lo segnala e smette di
+	 * registrare.
+	 */
+	private void append() {
+		try {
+			journal.append(board.getHeight(), board.getWidth(), playerFirst, moves, count);
+		} catch (IOException e) {
+			failed = true;
+			System.err.println("Game journal disabled: " + e);
+		} finally {
+			while (count > 0) {
+				count--;
+				board.undoMove(moves[count], playerFirst == (count % 2 == 0));
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package gj.forza4.player;
+
+import java.util.Arrays;
+
+/**
+ * La classe MoveScore descrive una delle mosse analizzate da
+ * {@link Puocci#analyze(int)}: la colonna, il punteggio dal punto di vista
+ * dell'AI, il tipo di punteggio e la variante principale che parte dalla mossa.
+ *
+ * @author Ubaldo Puocci
+ */
+public class MoveScore {
+
+	/**
+	 * Tipo di punteggio. Le mosse tra le migliori richieste hanno un
+	 * punteggio esatto, le altre solo un limite superiore.
+	 */
+	public enum Bound {
+		/** Il punteggio  esatto. */
+		EXACT,
+		/** Il punteggio reale  minore o uguale a quello riportato. */
+		UPPER
+	}
+
+	/** La colonna della mossa. */
+	private final int column;
+
+	/** Il punteggio della mossa. */
+	private final double score;
+
+	/** Il tipo di punteggio. */
+	private final Bound bound;
+
+	/** La variante principale, a partire dalla mossa stessa. */
+	private final int[] principalVariation;
+
+	/**
+	 * Istanzia un nuovo MoveScore.
+	 *
+	 * @param column
+	 *            la colonna della mossa.
+	 * @param score
+	 *            il punteggio della mossa.
+	 * @param bound
+	 *            il tipo di punteggio.
+	 * @param principalVariation
+	 *            la variante principale.
+	 */
+	MoveScore(int column, double score, Bound bound, int[] principalVariation) {
+		this.column = column;
+		this.score = score;
+		this.bound = bound;
+		this.principalVariation = principalVariation;
+	}
+
+	/**
+	 * Ritorna la colonna della mossa.
+	 *
+	 * @return la colonna.
+	 */
+	public int getColumn() {
+		return column;
+	}
+
+	/**
+	 * Ritorna il punteggio della mossa dal punto di vista dell'AI.
+	 *
+	 * @return il punteggio.
+	 */
+	public double getScore() {
+		return score;
+	}
+
+	/**
+	 * Ritorna il tipo di punteggio.
+	 *
+	 * @return {@link Bound#EXACT} se il punteggio  esatto, {@link Bound#UPPER}
+	 *         se  solo un limite superiore.
+	 */
+	public Bound getBound() {
+		return bound;
+	}
+
+	/**
+	 * Ritorna la variante principale: le colonne giocate alternativamente
+	 * dall'AI e dal giocatore, a partire da questa mossa.
+	 *
+	 * @return una copia della variante principale.
+	 */
+	public int[] getPrincipalVariation() {
+		return principalVariation.clone();
+	}
+
+	@Override
+	public String toString() {
+		return column + " " + (bound == Bound.EXACT ? "=" : "<=") + " " + score + " "
+				+ Arrays.toString(principalVariation);
+	}
+}
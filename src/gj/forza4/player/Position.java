@@ -0,0 +1,277 @@
+package gj.forza4.player;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * La classe Position  una fotografia immutabile di una {@link Board}. I
+ * segnalini dei due giocatori sono salvati in due bitboard: il bit
+ * {@code colonna * (altezza + 1) + riga}  acceso se la cella  occupata. La
+ * riga in pi per ogni colonna resta sempre vuota e permette di calcolare le
+ * sequenze con semplici shift. Una Position pu essere passata tra thread e
+ * code senza copie, e occupa {@link #BYTES} byte nella forma serializzata.
+ * <p>
+ * Sono rappresentabili solo le board per cui {@code larghezza * (altezza + 1)}
+ * non supera 64, come la board standard 6x7.
+ *
+ * @author Ubaldo Puocci
+ */
+public final class Position {
+
+	/** Numero di byte della forma serializzata. */
+	public static final int BYTES = 2 * Long.BYTES + 2;
+
+	/** Bitboard dei segnalini del giocatore. */
+	private final long playerBits;
+
+	/** Bitboard dei segnalini dell'AI. */
+	private final long aiBits;
+
+	/** Altezza della board. */
+	private final byte height;
+
+	/** Larghezza della board. */
+	private final byte width;
+
+	/**
+	 * Istanzia una nuova Position a partire dai bitboard dei due giocatori.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param playerBits
+	 *            il bitboard del giocatore
+	 * @param aiBits
+	 *            il bitboard dell'AI
+	 */
+	Position(int height, int width, long playerBits, long aiBits) {
+		if (width * (height + 1) > Long.SIZE || height <= 0 || width <= 0) {
+			throw new IllegalArgumentException("Board " + height + "x" + width + " cannot be packed");
+		}
+		this.height = (byte) height;
+		this.width = (byte) width;
+		this.playerBits = playerBits;
+		this.aiBits = aiBits;
+	}
+
+	/**
+	 * Crea una Position dallo stato corrente della board. La board mantiene
+	 * gi i propri bitboard, quindi non viene copiato nessun array.
+	 *
+	 * @param board
+	 *            la board da fotografare
+	 * @return la fotografia della board.
+	 * @throws IllegalArgumentException
+	 *             se la board  troppo grande per essere rappresentata.
+	 */
+	public static Position fromBoard(Board board) {
+		if (!board.isPackable()) {
+			throw new IllegalArgumentException(
+					"Board " + board.getHeight() + "x" + board.getWidth() + " cannot be packed");
+		}
+		return new Position(board.getHeight(), board.getWidth(), board.getPlayerBits(), board.getAiBits());
+	}
+
+	/**
+	 * Crea una nuova Board con gli stessi segnalini di questa Position.
+	 *
+	 * @return la nuova Board.
+	 */
+	public Board toBoard() {
+		return new Board(height, width, playerBits, aiBits);
+	}
+
+	/**
+	 * Ritorna l'altezza della board.
+	 *
+	 * @return l'altezza della board.
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Ritorna la larghezza della board.
+	 *
+	 * @return la larghezza della board.
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Ritorna il bitboard dei segnalini del giocatore.
+	 *
+	 * @return il bitboard del giocatore.
+	 */
+	public long getPlayerBits() {
+		return playerBits;
+	}
+
+	/**
+	 * Ritorna il bitboard dei segnalini dell'AI.
+	 *
+	 * @return il bitboard dell'AI.
+	 */
+	public long getAiBits() {
+		return aiBits;
+	}
+
+	/**
+	 * Ritorna il bitboard delle celle occupate.
+	 *
+	 * @return il bitboard delle celle occupate.
+	 */
+	public long getMask() {
+		return playerBits | aiBits;
+	}
+
+	/**
+	 * Ritorna il numero di segnalini presenti.
+	 *
+	 * @return il numero di segnalini.
+	 */
+	public int getMoveCount() {
+		return Long.bitCount(playerBits | aiBits);
+	}
+
+	/**
+	 * Scrive la Position nel buffer, in {@link #BYTES} byte.
+	 *
+	 * @param buffer
+	 *            il buffer in cui scrivere
+	 */
+	public void writeTo(ByteBuffer buffer) {
+		buffer.putLong(playerBits).putLong(aiBits).put(height).put(width);
+	}
+
+	/**
+	 * Legge una Position scritta con {@link #writeTo(ByteBuffer)}.
+	 *
+	 * @param buffer
+	 *            il buffer da cui leggere
+	 * @return la Position letta.
+	 * @throws IllegalArgumentException
+	 *             se i byte letti non sono una posizione valida.
+	 */
+	public static Position readFrom(ByteBuffer buffer) {
+		long playerBits = buffer.getLong();
+		long aiBits = buffer.getLong();
+		byte height = buffer.get();
+		byte width = buffer.get();
+		return checked(height, width, playerBits, aiBits);
+	}
+
+	/**
+	 * Scrive la Position nello stream, in {@link #BYTES} byte.
+	 *
+	 * @param out
+	 *            lo stream in cui scrivere
+	 * @throws IOException
+	 *             se la scrittura fallisce.
+	 */
+	public void writeTo(DataOutput out) throws IOException {
+		out.writeLong(playerBits);
+		out.writeLong(aiBits);
+		out.writeByte(height);
+		out.writeByte(width);
+	}
+
+	/**
+	 * Legge una Position scritta con {@link #writeTo(DataOutput)}.
+	 *
+	 * @param in
+	 *            lo stream da cui leggere
+	 * @return la Position letta.
+	 * @throws IOException
+	 *             se la lettura fallisce.
+	 * @throws IllegalArgumentException
+	 *             se i byte letti non sono una posizione valida.
+	 */
+	public static Position readFrom(DataInput in) throws IOException {
+		long playerBits = in.readLong();
+		long aiBits = in.readLong();
+		byte height = in.readByte();
+		byte width = in.readByte();
+		return checked(height, width, playerBits, aiBits);
+	}
+
+	/**
+	 * Crea una Position letta da un buffer o da uno stream, controllando che
+	 * sia una posizione raggiungibile sulla board: le dimensioni devono essere
+	 * rappresentabili, nessuna cella pu essere di entrambi i giocatori, i
+	 * segnalini devono stare nelle celle della board e ogni colonna deve essere
+	 * riempita dal basso, senza segnalini sospesi sopra una cella vuota.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param playerBits
+	 *            il bitboard del giocatore
+	 * @param aiBits
+	 *            il bitboard dell'AI
+	 * @return la Position.
+	 * @throws IllegalArgumentException
+	 *             se la posizione non  valida.
+	 */
+	private static Position checked(int height, int width, long playerBits, long aiBits) {
+		Position position = new Position(height, width, playerBits, aiBits);
+		if ((playerBits & aiBits) != 0) {
+			throw new IllegalArgumentException("Cells owned by both players: " + Long.toHexString(playerBits & aiBits));
+		}
+		long mask = playerBits | aiBits;
+		long column = (1L << height) - 1;
+		for (int x = 0; x < width; x++) {
+			long cells = mask >>> x * (height + 1) & (column << 1 | 1);
+			if ((cells & ~column) != 0) {
+				throw new IllegalArgumentException("Column " + x + " has more than " + height + " pieces");
+			}
+			// le celle occupate devono essere consecutive a partire dal basso
+			if ((cells & (cells + 1)) != 0) {
+				throw new IllegalArgumentException("Column " + x + " is not filled from the bottom");
+			}
+			mask &= ~((column << 1 | 1) << x * (height + 1));
+		}
+		if (mask != 0) {
+			throw new IllegalArgumentException("Pieces outside the " + height + "x" + width + " board");
+		}
+		return position;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof Position)) {
+			return false;
+		}
+		Position other = (Position) obj;
+		return playerBits == other.playerBits && aiBits == other.aiBits && height == other.height
+				&& width == other.width;
+	}
+
+	@Override
+	public int hashCode() {
+		long hash = playerBits * 0x9E3779B97F4A7C15L + aiBits;
+		hash ^= hash >>> 29;
+		return (int) (hash ^ (hash >>> 32)) * 31 + (height << 8 | width);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		for (int y = height - 1; y >= 0; y--) {
+			for (int x = 0; x < width; x++) {
+				long bit = 1L << (x * (height + 1) + y);
+				builder.append((playerBits & bit) != 0 ? 'X' : (aiBits & bit) != 0 ? 'O' : '.');
+			}
+			builder.append('\n');
+		}
+		return builder.toString();
+	}
+}
@@ -1,5 +1,11 @@
 package gj.forza4.player;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
 // TODO: Auto-generated Javadoc
 /**
  * La classe Puocci  la classe che implementa l'AI.
@@ -18,16 +24,106 @@ public class Puocci implements Player {
 	/** Punteggio assegnato ad un move che porta ad uno stato neutro. */
 	private final float UNCERTAIN_REVENUE = 0;
 
+	/** Numero di stati che la tabella delle trasposizioni pu contenere. */
+	private final int TABLE_SIZE = 1 << 18;
+
+	/**
+	 * Numero di celle vuote sotto il quale la ricerca consulta il
+	 * {@link ThreatAnalyzer} prima di espandere un nodo.
+	 */
+	private final int ENDGAME_CELLS = 16;
+
 	/** Istanza della classe Board. */
 	private Board board;
 
+	/** Analizzatore delle minacce sulla board. */
+	private ThreatAnalyzer threats;
+
+	/**
+	 * Database dei finali consultato nelle posizioni con poche celle vuote, o
+	 * null se non  disponibile.
+	 */
+	private EndgameDatabase endgame;
+
+	/**
+	 * Pesi della valutazione euristica. Se non vengono impostati prima della
+	 * partita, {@link #start(int, int)} li carica con
+	 * {@link EvalParams#loadDefault()}.
+	 */
+	private EvalParams params;
+
+	/** Valutatore delle foglie della ricerca. */
+	private Evaluator evaluator;
+
+	/**
+	 * Tabella delle trasposizioni condivisa da tutte le ricerche della
+	 * partita.
+	 */
+	private TranspositionTable table;
+
 	/** Booleano usato per controllare se  il primo turno di una partita. */
 	private boolean isFirstTurn = false;
 
+	/** Tempo totale per ogni partita, in ms. Negativo se non c' orologio. */
+	private final long budgetMillis;
+
+	/** Tempo aggiunto dopo ogni mossa, in ms. */
+	private final long incrementMillis;
+
+	/** Gestore del tempo della partita corrente, null se non c' orologio. */
+	private TimeManager timeManager;
+
+	/** Numero di nodi visitati dalla ricerca corrente. */
+	private long nodes;
+
+	/**
+	 * Booleano che indica se la ricerca  stata interrotta per il tempo o
+	 * perch il riscaldamento deve fermarsi.
+	 */
+	private boolean aborted;
+
+	/**
+	 * Booleano che indica se  in corso una mossa a tempo. Solo in questo caso
+	 * la ricerca controlla l'orologio.
+	 */
+	private boolean timing;
+
+	/**
+	 * Booleano che indica se l'istanza gioca per il riscaldamento di
+	 * {@link Warmup}, che interrompe le sue ricerche appena ne inizia una
+	 * vera.
+	 */
+	private boolean warmup;
+
+	/**
+	 * Istanzia un nuovo Puocci senza orologio: ogni mossa viene cercata alla
+	 * profondit {@link #MAX_DEPTH}.
+	 */
+	public Puocci() {
+		this(-1, 0);
+	}
+
+	/**
+	 * Istanzia un nuovo Puocci che gioca partite a tempo. Ogni mossa viene
+	 * cercata ad approfondimento iterativo finch il {@link TimeManager} lo
+	 * permette.
+	 *
+	 * @param budgetMillis
+	 *            il tempo totale per ogni partita, in ms
+	 * @param incrementMillis
+	 *            il tempo aggiunto dopo ogni mossa, in ms
+	 */
+	public Puocci(long budgetMillis, long incrementMillis) {
+		this.budgetMillis = budgetMillis;
+		this.incrementMillis = incrementMillis;
+	}
+
 	/**
 	 * Override del metodo {@code move()}. Se  il primo turno della partita,
-	 * ritorna il valore 3. Altrimenti invoca il metodo {@link #makeTurn()} per
-	 * decidere dove posizionare il segnalino.
+	 * ritorna il valore 3; nelle partite a tempo anche questa mossa passa dal
+	 * {@link TimeManager}, cos riceve l'incremento. Altrimenti invoca il
+	 * metodo {@link #makeTurn()}, o {@link #makeTimedTurn()} nelle partite a
+	 * tempo, per decidere dove posizionare il segnalino.
 	 * 
 	 * 
 	 */
@@ -35,9 +131,20 @@ public class Puocci implements Player {
 	public int move() {
 		if (isFirstTurn) {
 			isFirstTurn = false;
+			if (timeManager != null) {
+				// la mossa di apertura  immediata, ma riceve l'incremento
+				timeManager.startMove(board.getEmptyCells(), true);
+				timeManager.stopMove();
+			}
 			board.makeMoveAI(3);
 			return 3;
 		}
+		if (!warmup) {
+			Warmup.stop();
+		}
+		if (timeManager != null) {
+			return makeTimedTurn();
+		}
 		return makeTurn();
 	}
 
@@ -69,6 +176,108 @@ public class Puocci implements Player {
 		return move;
 	}
 
+	/**
+	 * Metodo usato per decidere il move nelle partite a tempo. Se il move 
+	 * forzato viene giocato subito, altrimenti la board viene cercata ad
+	 * approfondimento iterativo: ogni iterazione prova per prima la miglior
+	 * mossa della precedente e comunica il risultato al {@link TimeManager},
+	 * che decide se c' tempo per un'altra iterazione. Se il tempo scade
+	 * durante un'iterazione, viene usato il risultato dell'ultima completata.
+	 *
+	 * @return la colonna in cui inserire il segnalino
+	 */
+	private int makeTimedTurn() {
+		int move = forcedMove();
+		timeManager.startMove(board.getEmptyCells(), move >= 0);
+		aborted = false;
+		timing = true;
+		if (move < 0) {
+			move = firstValidMove();
+			double win = WIN_REVENUE / (MAX_DEPTH + 1);
+			for (int depth = 0; depth < board.getEmptyCells(); depth++) {
+				if (depth > 0 && !timeManager.canStartIteration()) {
+					break;
+				}
+				double maxValue = 2.0 * Integer.MIN_VALUE;
+				int best = move;
+				for (int i = -1; i < board.getWidth() && !aborted; i++) {
+					int colonna = i < 0 ? move : i;
+					if ((i >= 0 && colonna == move) || !board.isValidMove(colonna)) {
+						continue;
+					}
+					board.makeMoveAI(colonna);
+					double valore = alphabeta(depth, Math.max(maxValue, Integer.MIN_VALUE), Integer.MAX_VALUE,
+							false);
+					board.undoMoveAI(colonna);
+					if (valore > maxValue) {
+						maxValue = valore;
+						best = colonna;
+					}
+				}
+				if (aborted) {
+					break;
+				}
+				move = best;
+				timeManager.iterationDone(move, maxValue);
+				if (Math.abs(maxValue) >= win) {
+					break;
+				}
+			}
+			aborted = false;
+		}
+		timing = false;
+		timeManager.stopMove();
+		board.makeMoveAI(move);
+		return move;
+	}
+
+	/**
+	 * Metodo che cerca un move forzato: l'unico move valido, un move che
+	 * vince subito oppure l'unico move che blocca una vittoria immediata del
+	 * giocatore.
+	 *
+	 * @return la colonna del move forzato, o -1 se non c'.
+	 */
+	private int forcedMove() {
+		int valid = 0;
+		int lastValid = -1;
+		int block = -1;
+		int blocks = 0;
+		for (int colonna = 0; colonna < board.getWidth(); colonna++) {
+			if (!board.isValidMove(colonna)) {
+				continue;
+			}
+			valid++;
+			lastValid = colonna;
+			int riga = board.getColumnCount(colonna);
+			if (threats.isThreat(colonna, riga, Board.AI)) {
+				return colonna;
+			}
+			if (threats.isThreat(colonna, riga, Board.PLAYER)) {
+				block = colonna;
+				blocks++;
+			}
+		}
+		if (valid == 1) {
+			return lastValid;
+		}
+		return blocks == 1 ? block : -1;
+	}
+
+	/**
+	 * Ritorna la prima colonna in cui  possibile inserire un segnalino.
+	 *
+	 * @return la prima colonna valida.
+	 */
+	private int firstValidMove() {
+		for (int colonna = 0; colonna < board.getWidth(); colonna++) {
+			if (board.isValidMove(colonna)) {
+				return colonna;
+			}
+		}
+		return 0;
+	}
+
 	/**
 	 * Metodo usato per attribuire ad ogni possibile move, un punteggio. Fa uso
 	 * del metodo {@link #alphabeta(int, double, double, boolean)}.
@@ -96,7 +305,11 @@ public class Puocci implements Player {
 	 * {@code maxValue}, la ricerca si ferma poich si arriva in uno stato della
 	 * board in cui il giocatore non pu vincere. La profondit della ricerca (e
 	 * quindi l'altezza massima dell'albero di ricerca da generare) viene
-	 * passata come parametro.
+	 * passata come parametro. I valori degli stati gi visitati vengono letti
+	 * e salvati nella {@link TranspositionTable}, e la miglior mossa salvata
+	 * per uno stato viene provata per prima.
+	 * Quando restano poche celle vuote, il {@link ThreatAnalyzer} pu
+	 * determinare l'esito senza espandere il nodo o restringere la finestra.
 	 *
 	 * @param maxDepth
 	 *            la profondit massima della ricerca.
@@ -114,56 +327,310 @@ public class Puocci implements Player {
 	 * @return il valore attribuito alla miglior mossa trovata.
 	 */
 	private double alphabeta(int maxDepth, double minValue, double maxValue, boolean maximizingPlayer) {
+		if ((timing || warmup) && (++nodes & 1023) == 0
+				&& (warmup ? Warmup.isStopped() : timeManager.isTimeUp())) {
+			aborted = true;
+		}
+		if (aborted) {
+			return 0;
+		}
 		boolean hasWinner = board.hasWinner();
-		if (maxDepth == 0 || hasWinner) {
+		if (maxDepth == 0 || hasWinner || board.isBoardFull()) {
 			double punteggio = 0;
 			if (hasWinner) {
 				punteggio = board.playerIsWinner() ? LOSE_REVENUE : WIN_REVENUE;
+			} else if (maxDepth == 0 && !board.isBoardFull()) {
+				// la valutazione euristica non deve mai valere quanto una
+				// partita decisa
+				punteggio = UNCERTAIN_REVENUE + evaluator.evaluate();
+				punteggio = Math.max(LOSE_REVENUE + 1, Math.min(WIN_REVENUE - 1, punteggio));
 			} else {
 				punteggio = UNCERTAIN_REVENUE;
 			}
 			return punteggio / (MAX_DEPTH + 1);
 
 		}
+		if (endgame != null && board.getEmptyCells() <= endgame.getMaxEmpty()) {
+			long current = maximizingPlayer ? board.getAiBits() : board.getPlayerBits();
+			int esito = endgame.probe(current, board.getPlayerBits() | board.getAiBits());
+			if (esito != EndgameDatabase.UNKNOWN) {
+				double punteggio = esito == 0 ? UNCERTAIN_REVENUE
+						: (esito > 0) == maximizingPlayer ? WIN_REVENUE : LOSE_REVENUE;
+				return punteggio / (MAX_DEPTH + 1);
+			}
+		}
+		if (board.getEmptyCells() <= ENDGAME_CELLS) {
+			byte esito = threats.evaluate(maximizingPlayer ? Board.AI : Board.PLAYER);
+			if (esito == ThreatAnalyzer.WIN || esito == ThreatAnalyzer.LOSS) {
+				boolean aiWins = (esito == ThreatAnalyzer.WIN) == maximizingPlayer;
+				return (aiWins ? WIN_REVENUE : LOSE_REVENUE) / (MAX_DEPTH + 1);
+			} else if (esito == ThreatAnalyzer.NOT_WIN) {
+				// chi muove non pu vincere: la finestra esclude solo i
+				// punteggi di una vittoria, perch le foglie hanno valori
+				// euristici che possono superare quello del pareggio
+				double limite = (maximizingPlayer ? WIN_REVENUE - 1 : LOSE_REVENUE + 1) / (MAX_DEPTH + 1);
+				if (maximizingPlayer) {
+					maxValue = Math.min(maxValue, limite);
+				} else {
+					minValue = Math.max(minValue, limite);
+				}
+				if (maxValue <= minValue) {
+					return limite;
+				}
+			}
+		}
+		double originalMin = minValue;
+		double originalMax = maxValue;
+		long key = board.getKey();
+		int bestMove = TranspositionTable.NO_MOVE;
+		int index = table.find(key);
+		if (index >= 0) {
+			bestMove = table.move(index);
+			if (table.depth(index) >= maxDepth) {
+				double valore = table.value(index);
+				byte flag = table.flag(index);
+				if (flag == TranspositionTable.EXACT) {
+					return valore;
+				} else if (flag == TranspositionTable.LOWER) {
+					minValue = Math.max(minValue, valore);
+				} else {
+					maxValue = Math.min(maxValue, valore);
+				}
+				if (maxValue <= minValue) {
+					return valore;
+				}
+			}
+		}
+		// la miglior mossa salvata nella tabella viene provata per prima
+		int firstMove = bestMove;
+		double result;
 		if (maximizingPlayer) {
-			for (int colonna = 0; colonna < board.getWidth(); colonna++) {
-				if (board.isValidMove(colonna)) {
-					board.makeMoveAI(colonna);
-					minValue = Math.max(minValue, alphabeta(maxDepth - 1, minValue, maxValue, true));
-					board.undoMoveAI(colonna);
-					if (maxValue <= minValue) {
-						break;
-					}
+			for (int i = -1; i < board.getWidth(); i++) {
+				int colonna = i < 0 ? firstMove : i;
+				if (colonna < 0 || (i >= 0 && colonna == firstMove) || !board.isValidMove(colonna)) {
+					continue;
+				}
+				board.makeMoveAI(colonna);
+				double valore = alphabeta(maxDepth - 1, minValue, maxValue, false);
+				board.undoMoveAI(colonna);
+				if (valore > minValue) {
+					minValue = valore;
+					bestMove = colonna;
+				}
+				if (maxValue <= minValue) {
+					break;
 				}
 			}
-			return minValue;
+			result = minValue;
 		} else {
-			for (int colonna = 0; colonna < board.getWidth(); colonna++) {
-				if (board.isValidMove(colonna)) {
-					board.makeMovePlayer(colonna);
-					maxValue = Math.min(maxValue, alphabeta(maxDepth - 1, minValue, maxValue, false));
-					board.undoMovePlayer(colonna);
-					if (maxValue <= minValue) {
-						break;
-					}
+			for (int i = -1; i < board.getWidth(); i++) {
+				int colonna = i < 0 ? firstMove : i;
+				if (colonna < 0 || (i >= 0 && colonna == firstMove) || !board.isValidMove(colonna)) {
+					continue;
+				}
+				board.makeMovePlayer(colonna);
+				double valore = alphabeta(maxDepth - 1, minValue, maxValue, true);
+				board.undoMovePlayer(colonna);
+				if (valore < maxValue) {
+					maxValue = valore;
+					bestMove = colonna;
+				}
+				if (maxValue <= minValue) {
+					break;
+				}
+			}
+			result = maxValue;
+		}
+		if (aborted) {
+			return 0;
+		}
+		byte flag = TranspositionTable.EXACT;
+		if (result <= originalMin) {
+			flag = TranspositionTable.UPPER;
+		} else if (result >= originalMax) {
+			flag = TranspositionTable.LOWER;
+		}
+		table.store(key, result, maxDepth, flag, bestMove);
+		return result;
+	}
+
+	/**
+	 * Metodo usato per analizzare tutte le mosse valide nello stato corrente
+	 * della board. Le prime {@code lines} mosse vengono valutate con una
+	 * ricerca a finestra piena e hanno un punteggio esatto. Le altre vengono
+	 * confrontate con la peggiore tra le mosse esatte tramite una ricerca a
+	 * finestra nulla: se risultano migliori vengono rivalutate e prendono il
+	 * suo posto, mentre la mossa esclusa viene riportata con il suo punteggio
+	 * come limite superiore. Per le altre viene riportato solo un limite
+	 * superiore. Tutte le ricerche condividono la stessa
+	 * {@link TranspositionTable}, quindi le posizioni comuni a pi mosse
+	 * vengono valutate una sola volta.
+	 *
+	 * @param lines
+	 *            il numero di mosse di cui calcolare il punteggio esatto,
+	 *            almeno 1.
+	 * @return le mosse valide: prima le {@code lines} mosse esatte, poi le
+	 *         altre, ognuna ordinata dalla migliore alla peggiore.
+	 * @throws IllegalArgumentException
+	 *             se {@code lines}  minore di 1.
+	 */
+	public List<MoveScore> analyze(int lines) {
+		if (lines < 1) {
+			throw new IllegalArgumentException("lines must be at least 1: " + lines);
+		}
+		if (!warmup) {
+			Warmup.stop();
+		}
+		// l'analisi non ha limiti di tempo
+		aborted = false;
+		List<MoveScore> exact = new ArrayList<MoveScore>();
+		List<MoveScore> bounded = new ArrayList<MoveScore>();
+		for (int colonna = 0; colonna < board.getWidth(); colonna++) {
+			if (!board.isValidMove(colonna)) {
+				continue;
+			}
+			board.makeMoveAI(colonna);
+			double valore;
+			MoveScore.Bound bound = MoveScore.Bound.EXACT;
+			if (exact.size() < lines) {
+				valore = alphabeta(MAX_DEPTH, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+			} else {
+				double soglia = exact.get(lines - 1).getScore();
+				valore = alphabeta(MAX_DEPTH, soglia, Math.nextUp(soglia), false);
+				if (valore > soglia) {
+					valore = alphabeta(MAX_DEPTH, Integer.MIN_VALUE, Integer.MAX_VALUE, false);
+				} else {
+					bound = MoveScore.Bound.UPPER;
+				}
+			}
+			MoveScore score = new MoveScore(colonna, valore, bound, principalVariation(colonna));
+			board.undoMoveAI(colonna);
+			if (bound == MoveScore.Bound.EXACT) {
+				int position = 0;
+				while (position < exact.size() && exact.get(position).getScore() >= valore) {
+					position++;
 				}
+				exact.add(position, score);
+				if (exact.size() > lines) {
+					// la mossa esclusa resta con il suo punteggio come limite
+					MoveScore excluded = exact.remove(lines);
+					bounded.add(new MoveScore(excluded.getColumn(), excluded.getScore(), MoveScore.Bound.UPPER,
+							excluded.getPrincipalVariation()));
+				}
+			} else {
+				bounded.add(score);
 			}
-			return maxValue;
 		}
+		Collections.sort(bounded, new Comparator<MoveScore>() {
 
+			@Override
+			public int compare(MoveScore a, MoveScore b) {
+				return Double.compare(b.getScore(), a.getScore());
+			}
+		});
+		List<MoveScore> ranked = new ArrayList<MoveScore>(exact);
+		ranked.addAll(bounded);
+		return ranked;
+	}
+
+	/**
+	 * Ricostruisce la variante principale che parte dalla mossa dell'AI
+	 * appena giocata, seguendo le migliori mosse salvate nella
+	 * {@link TranspositionTable}. La board viene riportata allo stato
+	 * iniziale prima di ritornare.
+	 *
+	 * @param colonna
+	 *            la colonna appena giocata dall'AI.
+	 * @return le colonne della variante principale.
+	 */
+	private int[] principalVariation(int colonna) {
+		int[] variante = new int[MAX_DEPTH + 1];
+		int length = 0;
+		variante[length++] = colonna;
+		while (length < variante.length && !board.hasWinner()) {
+			int index = table.find(board.getKey());
+			if (index < 0) {
+				break;
+			}
+			int move = table.move(index);
+			if (move == TranspositionTable.NO_MOVE || !board.isValidMove(move)) {
+				break;
+			}
+			// le mosse in posizione dispari sono del giocatore
+			board.makeMove(move, length % 2 == 1);
+			variante[length++] = move;
+		}
+		for (int i = length - 1; i > 0; i--) {
+			board.undoMove(variante[i], i % 2 == 1);
+		}
+		return Arrays.copyOf(variante, length);
 	}
 
 	/**
 	 * Metodo che viene invocato all'inizio di ogni partita. Crea una nuova
 	 * istanza della classe Board e si assicura che il booleano che controlla se
-	 *  il primo turno, sia true.
+	 *  il primo turno, sia true. Nelle partite a tempo crea anche un nuovo
+	 * {@link TimeManager} con il budget completo. Se i pesi della valutazione
+	 * non sono stati impostati, vengono caricati dal file indicato dalla
+	 * propriet di sistema {@link EvalParams#FILE_PROPERTY}. Il database dei
+	 * finali indicato da {@link EndgameDatabase#FILE_PROPERTY} viene aperto
+	 * alla prima partita e riaperto solo se cambiano le dimensioni della
+	 * board. La tabella delle trasposizioni viene allocata alla prima partita
+	 * e svuotata nelle successive. Alla prima invocazione nella JVM pu
+	 * partire il riscaldamento di {@link Warmup}.
 	 * 
 	 */
 	@Override
 	public void start(int nRighe, int nColonne) {
 		Board board = new Board(nRighe, nColonne);
 		this.board = board;
+		if (table == null) {
+			this.table = new TranspositionTable(TABLE_SIZE);
+		} else {
+			table.clear();
+		}
+		this.threats = new ThreatAnalyzer(board);
+		if (endgame == null || !endgame.fits(nRighe, nColonne)) {
+			endgame = board.isPackable() ? EndgameDatabase.loadDefault(nRighe, nColonne) : null;
+		}
+		if (params == null) {
+			params = EvalParams.loadDefault();
+		}
+		this.evaluator = new Evaluator(board, params);
+		this.timeManager = budgetMillis < 0 ? null : new TimeManager(budgetMillis, incrementMillis);
 		isFirstTurn = true;
+		Warmup.startInBackground(nRighe, nColonne);
+	}
+
+	/**
+	 * Imposta i pesi della valutazione euristica. Ha effetto dalla prossima
+	 * invocazione di {@link #start(int, int)}.
+	 *
+	 * @param params
+	 *            i pesi da usare
+	 */
+	void setParams(EvalParams params) {
+		this.params = params;
+	}
+
+	/**
+	 * Segna l'istanza come giocatore del riscaldamento di {@link Warmup}.
+	 */
+	void setWarmup() {
+		this.warmup = true;
+	}
+
+	/**
+	 * Aggiunge alla board un move dell'AI deciso dall'esterno, per esempio
+	 * l'apertura di una partita di prova. Il move sostituisce quello del
+	 * primo turno.
+	 *
+	 * @param colonna
+	 *            la colonna in cui inserire il segnalino
+	 */
+	void forceMove(int colonna) {
+		isFirstTurn = false;
+		board.makeMoveAI(colonna);
 	}
 
 	/**
@@ -0,0 +1,45 @@
+package gj.forza4.player;
+
+/**
+ * La classe ScalarBatchEvaluator  l'implementazione di
+ * {@link BatchEvaluator} che valuta una posizione alla volta. Viene usata
+ * quando la Vector API non  disponibile.
+ *
+ * @author Ubaldo Puocci
+ */
+class ScalarBatchEvaluator extends BatchEvaluator {
+
+	/**
+	 * Istanzia un nuovo ScalarBatchEvaluator.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 */
+	ScalarBatchEvaluator(int height, int width) {
+		super(height, width);
+	}
+
+	@Override
+	public void winners(long[] player, long[] ai, int count, byte[] winners) {
+		for (int i = 0; i < count; i++) {
+			if (hasFour(player[i])) {
+				winners[i] = Board.PLAYER;
+			} else if (hasFour(ai[i])) {
+				winners[i] = Board.AI;
+			} else {
+				winners[i] = Board.NOBODY;
+			}
+		}
+	}
+
+	@Override
+	public void threats(long[] player, long[] ai, int count, long[] playerThreats, long[] aiThreats) {
+		for (int i = 0; i < count; i++) {
+			long mask = player[i] | ai[i];
+			playerThreats[i] = threatCells(player[i], mask);
+			aiThreats[i] = threatCells(ai[i], mask);
+		}
+	}
+}
@@ -0,0 +1,291 @@
+package gj.forza4.player;
+
+/**
+ * La classe Solver risolve esattamente una posizione, esplorando l'albero
+ * fino alla fine della partita. Lavora sui bitboard: {@code current} contiene
+ * i segnalini del giocatore che deve muovere e {@code mask} tutte le celle
+ * occupate, con la codifica di {@link Position}.
+ * <p>
+ * Il punteggio  dal punto di vista di chi muove: zero se la partita finisce
+ * pari, positivo se vince e negativo se perde. Il valore assoluto  pi
+ * grande quanto prima finisce la partita: chi vince con il suo ultimo
+ * segnalino in gioco ottiene 1, chi vince con la sua prima mossa ottiene
+ * {@code (larghezza * altezza + 1) / 2} meno i segnalini gi giocati da lui.
+ * <p>
+ * La ricerca  un negamax con potatura alfa-beta, una tabella delle
+ * trasposizioni che salva limiti superiori, le colonne esplorate dal centro
+ * verso i bordi e l'esclusione delle mosse che lasciano all'avversario una
+ * vittoria immediata. Il valore esatto viene trovato restringendo la finestra
+ * con ricerche a finestra nulla.
+ *
+ * @author Ubaldo Puocci
+ */
+class Solver {
+
+	/** Altezza della board. */
+	private final int height;
+
+	/** Larghezza della board. */
+	private final int width;
+
+	/** Operazioni sui bitboard per le board di queste dimensioni. */
+	private final BatchEvaluator bits;
+
+	/** Bitboard con la cella pi bassa di ogni colonna. */
+	private final long bottomMask;
+
+	/** Ordine in cui esplorare le colonne, dal centro verso i bordi. */
+	private final int[] order;
+
+	/** Numero di bit usati per l'indice della tabella delle trasposizioni. */
+	private final int tableBits;
+
+	/** Chiavi della tabella delle trasposizioni. */
+	private final long[] keys;
+
+	/** Limiti superiori salvati nella tabella, spostati per non valere zero. */
+	private final byte[] values;
+
+	/** Numero di nodi visitati. */
+	private long nodes;
+
+	/**
+	 * Booleano che indica se la ricerca in corso  stata annullata da un
+	 * altro thread.
+	 */
+	private volatile boolean cancelled;
+
+	/**
+	 * Istanzia un nuovo Solver per board delle dimensioni indicate.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param tableBits
+	 *            il logaritmo in base due del numero di celle della tabella
+	 *            delle trasposizioni
+	 */
+	Solver(int height, int width, int tableBits) {
+		this.height = height;
+		this.width = width;
+		this.bits = new ScalarBatchEvaluator(height, width);
+		long bottom = 0;
+		for (int x = 0; x < width; x++) {
+			bottom |= 1L << (x * (height + 1));
+		}
+		this.bottomMask = bottom;
+		this.order = new int[width];
+		for (int i = 0; i < width; i++) {
+			order[i] = width / 2 + (1 - 2 * (i % 2)) * (i + 1) / 2;
+		}
+		this.tableBits = tableBits;
+		this.keys = new long[1 << tableBits];
+		this.values = new byte[1 << tableBits];
+	}
+
+	/**
+	 * Risolve la posizione.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @return il punteggio esatto per il giocatore che deve muovere.
+	 */
+	int solve(long current, long mask) {
+		int moves = Long.bitCount(mask);
+		if (canWinNext(current, mask)) {
+			return (width * height + 1 - moves) / 2;
+		}
+		int min = -(width * height - moves) / 2;
+		int max = (width * height + 1 - moves) / 2;
+		while (min < max) {
+			int med = min + (max - min) / 2;
+			if (med <= 0 && min / 2 < med) {
+				med = min / 2;
+			} else if (med >= 0 && max / 2 > med) {
+				med = max / 2;
+			}
+			int score = negamax(current, mask, moves, med, med + 1);
+			if (score <= med) {
+				max = score;
+			} else {
+				min = score;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Risolve la posizione calcolando solo l'esito della partita, con una
+	 * ricerca nella finestra tra -1 e 1. Costa molto meno di
+	 * {@link #solve(long, long)} perch non cerca la vittoria pi veloce.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @return 1 se chi muove vince, -1 se perde, 0 se la partita finisce pari.
+	 */
+	int solveWeak(long current, long mask) {
+		if (canWinNext(current, mask)) {
+			return 1;
+		}
+		int score = negamax(current, mask, Long.bitCount(mask), -1, 1);
+		if (score == 0) {
+			return 0;
+		}
+		// il limite trovato  fuori dalla finestra solo se  certo
+		return score > 0 ? 1 : -1;
+	}
+
+	/**
+	 * Ritorna l'ordine in cui esplorare le colonne, dal centro verso i bordi.
+	 *
+	 * @return una copia dell'ordine delle colonne.
+	 */
+	int[] getColumnOrder() {
+		return order.clone();
+	}
+
+	/**
+	 * Annulla la ricerca in corso, che ritorna subito un risultato senza
+	 * significato. La tabella delle trasposizioni resta valida. Pu essere
+	 * invocato da un altro thread.
+	 */
+	void cancel() {
+		cancelled = true;
+	}
+
+	/**
+	 * Permette di nuovo le ricerche dopo un {@link #cancel()}.
+	 */
+	void resetCancel() {
+		cancelled = false;
+	}
+
+	/**
+	 * Ritorna il numero di nodi visitati da quando il Solver  stato creato.
+	 *
+	 * @return il numero di nodi.
+	 */
+	long getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * Il negamax con potatura alfa-beta. La posizione non deve permettere al
+	 * giocatore che muove di vincere subito.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @param moves
+	 *            il numero di segnalini giocati
+	 * @param alpha
+	 *            il limite inferiore della finestra
+	 * @param beta
+	 *            il limite superiore della finestra
+	 * @return il punteggio se  nella finestra, altrimenti un limite.
+	 */
+	private int negamax(long current, long mask, int moves, int alpha, int beta) {
+		if (cancelled) {
+			return 0;
+		}
+		nodes++;
+		long possible = (mask + bottomMask) & bits.boardMask;
+		long opponentWins = bits.threatCells(current ^ mask, mask);
+		long forced = possible & opponentWins;
+		if (forced != 0) {
+			if ((forced & (forced - 1)) != 0) {
+				// due minacce immediate dell'avversario
+				return -(width * height - moves) / 2;
+			}
+			possible = forced;
+		}
+		// non si gioca sotto una minaccia dell'avversario
+		possible &= ~(opponentWins >>> 1);
+		if (possible == 0) {
+			return -(width * height - moves) / 2;
+		}
+		if (moves >= width * height - 2) {
+			return 0;
+		}
+		int min = -(width * height - 2 - moves) / 2;
+		if (alpha < min) {
+			alpha = min;
+			if (alpha >= beta) {
+				return alpha;
+			}
+		}
+		int max = (width * height - 1 - moves) / 2;
+		long key = current + mask;
+		int index = (int) ((key * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - tableBits));
+		// un valore zero indica una cella vuota
+		if (keys[index] == key && values[index] != 0) {
+			max = values[index] + minScore() - 1;
+		}
+		if (beta > max) {
+			beta = max;
+			if (alpha >= beta) {
+				return beta;
+			}
+		}
+		for (int colonna : order) {
+			long move = possible & columnMask(colonna);
+			if (move == 0) {
+				continue;
+			}
+			int score = -negamax(current ^ mask, mask | move, moves + 1, -beta, -alpha);
+			if (score >= beta) {
+				return score;
+			}
+			if (score > alpha) {
+				alpha = score;
+			}
+		}
+		if (cancelled) {
+			// i figli annullati non hanno dato limiti validi
+			return 0;
+		}
+		keys[index] = key;
+		values[index] = (byte) (alpha - minScore() + 1);
+		return alpha;
+	}
+
+	/**
+	 * Controlla se il giocatore che muove pu vincere con la prossima mossa.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @return true, se pu vincere subito. False altrimenti.
+	 */
+	boolean canWinNext(long current, long mask) {
+		long possible = (mask + bottomMask) & bits.boardMask;
+		return (bits.threatCells(current, mask) & possible) != 0;
+	}
+
+	/**
+	 * Ritorna il bitboard di una colonna.
+	 *
+	 * @param colonna
+	 *            la colonna
+	 * @return le celle della colonna.
+	 */
+	long columnMask(int colonna) {
+		return ((1L << height) - 1) << (colonna * (height + 1));
+	}
+
+	/**
+	 * Ritorna il punteggio pi basso possibile.
+	 *
+	 * @return il punteggio di chi perde subito dopo la prima mossa.
+	 */
+	private int minScore() {
+		return -(width * height) / 2 + 3;
+	}
+}
@@ -0,0 +1,558 @@
+package gj.forza4.player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * La classe SolverCoordinator risolve una posizione distribuendo il lavoro
+ * tra pi processi {@link SolverWorker}, sulla stessa macchina o su macchine
+ * diverse. L'albero viene espanso fino alla profondit di divisione: ogni
+ * posizione raggiunta a quella profondit diventa un'unit di lavoro, e le
+ * posizioni raggiunte da sequenze diverse vengono risolte una volta sola.
+ * <p>
+ * I worker si collegano al coordinatore e prendono un'unit alla volta da una
+ * coda condivisa, quindi chi finisce prima lavora di pi. Quando la coda 
+ * vuota, un worker libero ruba un'unit ancora in corso su un altro worker e
+ * vale il primo risultato che arriva: l'altro worker riceve un messaggio che
+ * annulla l'unit e torna libero. Se un worker muore, o smette di
+ * mandare segnali, le sue unit tornano in coda. Ogni risultato viene
+ * propagato verso la radice, e il lavoro finisce appena l'esito della radice
+ *  deciso, anche se restano unit che una potatura alfa-beta avrebbe
+ * scartato.
+ * <p>
+ * Il risultato  l'esito della partita per chi muove, come quello di
+ * {@link Solver#solveWeak(long, long)}: le unit vanno risolte tutte senza
+ * sapere quale finestra servir alla radice, e cercare solo l'esito costa
+ * molto meno che cercare la vittoria pi veloce.
+ * <p>
+ * Uso: {@code SolverCoordinator <righe> <colonne> <profondit> <porta>
+ * [worker locali] [mosse]}, dove le mosse sono le colonne gi giocate a
+ * partire dalla board vuota, per esempio {@code 3324}.
+ *
+ * @author Ubaldo Puocci
+ */
+public class SolverCoordinator {
+
+	/** Numero che apre ogni connessione con un worker. */
+	static final int MAGIC = 0x46345356;
+
+	/** Identificativo che comunica al worker che il lavoro  finito. */
+	static final int DONE = -1;
+
+	/** Messaggio con cui il worker segnala di essere ancora attivo. */
+	static final int HEARTBEAT = -2;
+
+	/**
+	 * Messaggio che annulla un'unit gi risolta da un altro worker, seguito
+	 * dall'identificativo dell'unit.
+	 */
+	static final int CANCEL = -3;
+
+	/** Tempo concesso ai worker locali per terminare, in secondi. */
+	private static final int EXIT_SECONDS = 5;
+
+	/** Tempo senza messaggi dopo il quale un worker  considerato morto. */
+	private static final int TIMEOUT_MILLIS = 10 * SolverWorker.HEARTBEAT_MILLIS;
+
+	/**
+	 * La classe WorkUnit descrive una posizione da risolvere su un worker.
+	 */
+	static class WorkUnit {
+
+		/** Identificativo dell'unit. */
+		final int id;
+
+		/** I segnalini del giocatore che deve muovere. */
+		final long current;
+
+		/** Le celle occupate. */
+		final long mask;
+
+		/** Stream dei worker che stanno risolvendo l'unit. */
+		final List<DataOutputStream> running = new ArrayList<DataOutputStream>();
+
+		/** Booleano che indica se l'unit  stata risolta. */
+		boolean done;
+
+		/** L'esito della posizione, valido se {@link #done}  true. */
+		int score;
+
+		/**
+		 * Istanzia una nuova WorkUnit.
+		 *
+		 * @param id
+		 *            l'identificativo
+		 * @param current
+		 *            i segnalini del giocatore che deve muovere
+		 * @param mask
+		 *            le celle occupate
+		 */
+		WorkUnit(int id, long current, long mask) {
+			this.id = id;
+			this.current = current;
+			this.mask = mask;
+		}
+	}
+
+	/** Altezza della board. */
+	private final int height;
+
+	/** Larghezza della board. */
+	private final int width;
+
+	/** I segnalini del giocatore che muove nella posizione da risolvere. */
+	private final long current;
+
+	/** Le celle occupate nella posizione da risolvere. */
+	private final long mask;
+
+	/** Profondit a cui l'albero viene diviso in unit di lavoro. */
+	private final int splitDepth;
+
+	/** Solver usato solo per le operazioni sui bitboard. */
+	private final Solver bits;
+
+	/** Unit di lavoro, indicizzate con la chiave della posizione. */
+	private final Map<Long, WorkUnit> units = new HashMap<Long, WorkUnit>();
+
+	/** Unit in attesa di un worker. */
+	private final LinkedBlockingDeque<WorkUnit> pending = new LinkedBlockingDeque<WorkUnit>();
+
+	/** Numero di unit non ancora risolte. */
+	private int unsolved;
+
+	/** Contatore che si azzera quando l'esito della radice  noto. */
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	/** I socket dei worker collegati. */
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	/** L'esito della radice, valido quando {@link #finished}  azzerato. */
+	private int result;
+
+	/** La miglior mossa trovata da {@link #solve(ServerSocket)}. */
+	private int bestMove = -1;
+
+	/**
+	 * Istanzia un nuovo SolverCoordinator ed espande l'albero fino alla
+	 * profondit di divisione.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @param splitDepth
+	 *            la profondit a cui dividere l'albero, almeno 1
+	 */
+	public SolverCoordinator(int height, int width, long current, long mask, int splitDepth) {
+		this.height = height;
+		this.width = width;
+		this.current = current;
+		this.mask = mask;
+		this.splitDepth = Math.max(1, splitDepth);
+		this.bits = new Solver(height, width, 1);
+		split(current, mask, 0);
+		this.unsolved = units.size();
+		pending.addAll(units.values());
+		update();
+	}
+
+	/**
+	 * Ritorna il numero di unit di lavoro.
+	 *
+	 * @return il numero di unit.
+	 */
+	public int getUnitCount() {
+		return units.size();
+	}
+
+	/**
+	 * Ritorna la miglior mossa nella posizione risolta.
+	 *
+	 * @return la colonna della miglior mossa, o -1 se la posizione non 
+	 *         ancora stata risolta.
+	 */
+	public int getBestMove() {
+		return bestMove;
+	}
+
+	/**
+	 * Accetta i worker sul socket e distribuisce le unit di lavoro finch
+	 * l'esito della radice non  noto. Le unit rimaste in coda a quel punto
+	 * non vengono pi risolte, e i worker vengono scollegati.
+	 *
+	 * @param server
+	 *            il socket su cui accettare i worker
+	 * @return 1 se chi muove vince, -1 se perde, 0 se la partita finisce pari.
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto.
+	 */
+	public int solve(final ServerSocket server) throws InterruptedException {
+		Thread acceptor = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				while (!server.isClosed()) {
+					try {
+						final Socket socket = server.accept();
+						Thread handler = new Thread(new Runnable() {
+
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						}, "solver-" + socket.getRemoteSocketAddress());
+						handler.setDaemon(true);
+						handler.start();
+					} catch (IOException e) {
+						// il socket  stato chiuso
+					}
+				}
+			}
+		}, "solver-acceptor");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		finished.await();
+		synchronized (this) {
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// niente da fare
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Espande l'albero a partire dalla posizione e crea un'unit per ogni
+	 * posizione raggiunta alla profondit di divisione. Le posizioni in cui
+	 * chi muove vince subito, o la board  piena, non servono ai worker.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @param depth
+	 *            la profondit della posizione
+	 */
+	private void split(long current, long mask, int depth) {
+		if (Long.bitCount(mask) == width * height || bits.canWinNext(current, mask)) {
+			return;
+		}
+		if (depth == splitDepth) {
+			long key = current + mask;
+			if (!units.containsKey(key)) {
+				units.put(key, new WorkUnit(units.size(), current, mask));
+			}
+			return;
+		}
+		for (int colonna : bits.getColumnOrder()) {
+			long move = (mask + (1L << (colonna * (height + 1)))) & bits.columnMask(colonna);
+			if (move != 0) {
+				split(current ^ mask, mask | move, depth + 1);
+			}
+		}
+	}
+
+	/**
+	 * Combina i risultati delle unit disponibili risalendo la parte di
+	 * albero espansa da {@link #split(long, long, int)}. Le unit non ancora
+	 * risolte valgono qualsiasi esito, quindi il risultato  un intervallo:
+	 * per ogni nodo il limite inferiore  il migliore tra i limiti inferiori
+	 * delle mosse, e quello superiore il migliore tra i limiti superiori. Alla
+	 * radice salva la mossa con il limite inferiore pi alto.
+	 *
+	 * @param current
+	 *            i segnalini del giocatore che deve muovere
+	 * @param mask
+	 *            le celle occupate
+	 * @param depth
+	 *            la profondit della posizione
+	 * @return i limiti inferiore e superiore dell'esito della posizione.
+	 */
+	private int[] merge(long current, long mask, int depth) {
+		if (Long.bitCount(mask) == width * height) {
+			return new int[] { 0, 0 };
+		}
+		if (bits.canWinNext(current, mask)) {
+			return new int[] { 1, 1 };
+		}
+		if (depth == splitDepth) {
+			WorkUnit unit = units.get(current + mask);
+			return unit.done ? new int[] { unit.score, unit.score } : new int[] { -1, 1 };
+		}
+		int[] result = { Integer.MIN_VALUE, Integer.MIN_VALUE };
+		for (int colonna : bits.getColumnOrder()) {
+			long move = (mask + (1L << (colonna * (height + 1)))) & bits.columnMask(colonna);
+			if (move == 0) {
+				continue;
+			}
+			int[] child = merge(current ^ mask, mask | move, depth + 1);
+			if (-child[1] > result[0]) {
+				result[0] = -child[1];
+				if (depth == 0) {
+					bestMove = colonna;
+				}
+			}
+			result[1] = Math.max(result[1], -child[0]);
+		}
+		return result;
+	}
+
+	/**
+	 * Serve un worker: gli manda le unit una alla volta e ne raccoglie i
+	 * risultati. Se la connessione si interrompe, l'unit in corso torna in
+	 * coda.
+	 *
+	 * @param socket
+	 *            il socket collegato al worker
+	 */
+	private void serve(Socket socket) {
+		WorkUnit unit = null;
+		DataOutputStream out = null;
+		synchronized (this) {
+			sockets.add(socket);
+		}
+		try {
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(TIMEOUT_MILLIS);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(MAGIC);
+			out.writeByte(height);
+			out.writeByte(width);
+			out.flush();
+			while ((unit = take(out)) != null) {
+				// complete() pu scrivere un annullamento da un altro thread
+				synchronized (out) {
+					out.writeInt(unit.id);
+					out.writeLong(unit.current);
+					out.writeLong(unit.mask);
+					out.flush();
+				}
+				int id;
+				while ((id = in.readInt()) == HEARTBEAT) {
+					// il worker sta ancora risolvendo
+				}
+				if (id != unit.id) {
+					throw new IOException("Unexpected result for unit " + id);
+				}
+				complete(unit, in.readInt(), out);
+				unit = null;
+			}
+			synchronized (out) {
+				out.writeInt(DONE);
+				out.flush();
+			}
+		} catch (SocketTimeoutException e) {
+			// il worker non risponde pi
+		} catch (IOException | InterruptedException e) {
+			// il worker  morto
+		} finally {
+			if (unit != null) {
+				release(unit, out);
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// niente da fare
+			}
+		}
+	}
+
+	/**
+	 * Prende la prossima unit per un worker libero. Se la coda  vuota ruba
+	 * un'unit in corso su un solo altro worker.
+	 *
+	 * @param out
+	 *            lo stream del worker
+	 * @return l'unit da risolvere, o null se sono tutte risolte.
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto.
+	 */
+	private WorkUnit take(DataOutputStream out) throws InterruptedException {
+		while (finished.getCount() > 0) {
+			WorkUnit unit = pending.poll(100, TimeUnit.MILLISECONDS);
+			synchronized (this) {
+				if (unit == null) {
+					unit = steal();
+				}
+				if (unit != null && !unit.done) {
+					unit.running.add(out);
+					return unit;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Cerca un'unit in corso su un solo worker.
+	 *
+	 * @return l'unit da rubare, o null se non ce ne sono.
+	 */
+	private synchronized WorkUnit steal() {
+		for (WorkUnit unit : units.values()) {
+			if (!unit.done && unit.running.size() == 1) {
+				return unit;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Salva il risultato di un'unit, se non era gi stato salvato da un
+	 * altro worker, e annulla l'unit sugli altri worker che la stanno ancora
+	 * risolvendo. Gli annullamenti vengono scritti fuori dal monitor, cos un
+	 * worker lento a leggere non blocca gli altri thread; un worker che nel
+	 * frattempo ha finito l'unit ignora l'annullamento.
+	 *
+	 * @param unit
+	 *            l'unit risolta
+	 * @param score
+	 *            l'esito della posizione
+	 * @param out
+	 *            lo stream del worker che l'ha risolta
+	 */
+	private void complete(WorkUnit unit, int score, DataOutputStream out) {
+		List<DataOutputStream> others;
+		synchronized (this) {
+			unit.running.remove(out);
+			if (unit.done) {
+				return;
+			}
+			unit.done = true;
+			unit.score = score;
+			unsolved--;
+			others = new ArrayList<DataOutputStream>(unit.running);
+			update();
+		}
+		for (DataOutputStream other : others) {
+			try {
+				synchronized (other) {
+					other.writeInt(CANCEL);
+					other.writeInt(unit.id);
+					other.flush();
+				}
+			} catch (IOException e) {
+				// il worker  morto, lo scopre il suo thread
+			}
+		}
+	}
+
+	/**
+	 * Ricalcola i limiti dell'esito della radice con le unit risolte finora
+	 * e, se coincidono, segnala che il lavoro  finito.
+	 */
+	private synchronized void update() {
+		int[] bounds = merge(current, mask, 0);
+		if (bounds[0] == bounds[1] || unsolved == 0) {
+			result = bounds[0];
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Libera un'unit il cui worker  morto e la rimette in coda se nessun
+	 * altro worker la sta risolvendo.
+	 *
+	 * @param unit
+	 *            l'unit da liberare
+	 * @param out
+	 *            lo stream del worker morto
+	 */
+	private synchronized void release(WorkUnit unit, DataOutputStream out) {
+		unit.running.remove(out);
+		if (!unit.done && unit.running.isEmpty()) {
+			pending.addFirst(unit);
+		}
+	}
+
+	/**
+	 * Avvia un worker locale in un nuovo processo.
+	 *
+	 * @param port
+	 *            la porta del coordinatore
+	 * @return il processo del worker.
+	 * @throws IOException
+	 *             se il processo non pu essere avviato.
+	 */
+	static Process startLocalWorker(int port) throws IOException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		List<String> command = new ArrayList<String>();
+		command.add(java);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(SolverWorker.class.getName());
+		command.add("localhost");
+		command.add(Integer.toString(port));
+		return new ProcessBuilder(command).inheritIO().start();
+	}
+
+	/**
+	 * Risolve una posizione dalla riga di comando.
+	 *
+	 * @param args
+	 *            righe, colonne, profondit di divisione, porta, numero di
+	 *            worker locali da avviare e mosse gi giocate.
+	 * @throws Exception
+	 *             se la risoluzione fallisce.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: SolverCoordinator <rows> <cols> <split depth> <port> [local workers] [moves]");
+			System.exit(1);
+		}
+		int height = Integer.parseInt(args[0]);
+		int width = Integer.parseInt(args[1]);
+		int splitDepth = Integer.parseInt(args[2]);
+		int port = Integer.parseInt(args[3]);
+		int localWorkers = args.length > 4 ? Integer.parseInt(args[4]) : 0;
+		Board board = new Board(height, width);
+		String moves = args.length > 5 ? args[5] : "";
+		for (int i = 0; i < moves.length(); i++) {
+			board.makeMove(moves.charAt(i) - '0', i % 2 == 0);
+		}
+		boolean firstToMove = moves.length() % 2 == 0;
+		long current = firstToMove ? board.getPlayerBits() : board.getAiBits();
+		long mask = board.getPlayerBits() | board.getAiBits();
+		long start = System.nanoTime();
+		SolverCoordinator coordinator = new SolverCoordinator(height, width, current, mask, splitDepth);
+		List<Process> workers = new ArrayList<Process>();
+		try (ServerSocket server = new ServerSocket(port)) {
+			for (int i = 0; i < localWorkers; i++) {
+				workers.add(startLocalWorker(server.getLocalPort()));
+			}
+			int score = coordinator.solve(server);
+			System.out.println("result " + score + ", best move " + coordinator.getBestMove() + ", "
+					+ coordinator.getUnitCount() + " units, " + (System.nanoTime() - start) / 1000000 + " ms");
+		} finally {
+			for (Process worker : workers) {
+				// un worker che non termina non deve sopravvivere al coordinatore
+				if (!worker.waitFor(EXIT_SECONDS, TimeUnit.SECONDS)) {
+					worker.destroyForcibly();
+				}
+			}
+		}
+	}
+}
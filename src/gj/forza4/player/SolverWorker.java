@@ -0,0 +1,215 @@
+package gj.forza4.player;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * La classe SolverWorker  il processo che risolve le unit di lavoro
+ * distribuite da {@link SolverCoordinator}. Si collega al coordinatore,
+ * riceve le dimensioni della board e poi calcola l'esito di una posizione
+ * alla volta con {@link Solver#solveWeak(long, long)}, senza svuotare la
+ * tabella delle trasposizioni tra un'unit e l'altra. Mentre risolve, manda
+ * periodicamente un segnale al coordinatore, cos un worker bloccato o
+ * irraggiungibile viene riconosciuto anche se la connessione non viene
+ * chiusa. Un thread separato legge i messaggi del coordinatore, quindi
+ * un'unit risolta nel frattempo da un altro worker viene annullata subito.
+ * <p>
+ * Uso: {@code SolverWorker <host> <porta>}
+ *
+ * @author Ubaldo Puocci
+ */
+public class SolverWorker {
+
+	/** Logaritmo in base due della dimensione della tabella del Solver. */
+	private static final int TABLE_BITS = 22;
+
+	/** Intervallo tra due segnali al coordinatore, in ms. */
+	static final int HEARTBEAT_MILLIS = 1000;
+
+	/** Socket collegato al coordinatore. */
+	private final Socket socket;
+
+	/** Stream da cui leggere le unit di lavoro. */
+	private final DataInputStream in;
+
+	/** Stream su cui scrivere i risultati e i segnali. */
+	private final DataOutputStream out;
+
+	/**
+	 * Unit ricevute dal coordinatore: identificativo, segnalini di chi muove
+	 * e celle occupate. Un'unit con identificativo
+	 * {@link SolverCoordinator#DONE} chiude il lavoro.
+	 */
+	private final BlockingQueue<long[]> units = new LinkedBlockingQueue<long[]>();
+
+	/** Il Solver, creato quando arrivano le dimensioni della board. */
+	private Solver solver;
+
+	/** Identificativo dell'unit in corso, o DONE se non ce n' una. */
+	private int solving = SolverCoordinator.DONE;
+
+	/**
+	 * Istanzia un nuovo SolverWorker collegandosi al coordinatore.
+	 *
+	 * @param host
+	 *            l'host del coordinatore
+	 * @param port
+	 *            la porta del coordinatore
+	 * @throws IOException
+	 *             se la connessione fallisce.
+	 */
+	public SolverWorker(String host, int port) throws IOException {
+		this.socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	/**
+	 * Risolve le unit di lavoro finch il coordinatore non comunica che sono
+	 * finite o chiude la connessione. Il risultato di un'unit annullata viene
+	 * comunque mandato, e il coordinatore lo ignora.
+	 *
+	 * @return il numero di unit risolte.
+	 * @throws IOException
+	 *             se la connessione si interrompe.
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto.
+	 */
+	public int run() throws IOException, InterruptedException {
+		int solved = 0;
+		try {
+			if (in.readInt() != SolverCoordinator.MAGIC) {
+				throw new IOException("Not a Forza4 solver coordinator");
+			}
+			int height = in.readByte();
+			int width = in.readByte();
+			synchronized (this) {
+				solver = new Solver(height, width, TABLE_BITS);
+			}
+			Thread heartbeat = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					heartbeat();
+				}
+			}, "solver-heartbeat");
+			heartbeat.setDaemon(true);
+			heartbeat.start();
+			Thread reader = new Thread(new Runnable() {
+
+				@Override
+				public void run() {
+					read();
+				}
+			}, "solver-reader");
+			reader.setDaemon(true);
+			reader.start();
+			while (true) {
+				long[] unit = units.take();
+				int id = (int) unit[0];
+				if (id == SolverCoordinator.DONE) {
+					return solved;
+				}
+				synchronized (this) {
+					solving = id;
+					solver.resetCancel();
+				}
+				int score = solver.solveWeak(unit[1], unit[2]);
+				boolean cancelled;
+				synchronized (this) {
+					cancelled = solving != id;
+					solving = SolverCoordinator.DONE;
+				}
+				synchronized (out) {
+					out.writeInt(id);
+					out.writeInt(score);
+					out.flush();
+				}
+				if (!cancelled) {
+					solved++;
+				}
+			}
+		} catch (EOFException | SocketException e) {
+			// il coordinatore conosce gi l'esito e ha chiuso la connessione
+			return solved;
+		} finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Legge i messaggi del coordinatore finch la connessione resta aperta:
+	 * mette in coda le unit e annulla quella in corso se il coordinatore la
+	 * conosce gi. Alla fine mette in coda un'unit DONE.
+	 */
+	private void read() {
+		try {
+			while (true) {
+				int id = in.readInt();
+				if (id == SolverCoordinator.DONE) {
+					break;
+				}
+				if (id == SolverCoordinator.CANCEL) {
+					int cancelled = in.readInt();
+					synchronized (this) {
+						if (solving == cancelled) {
+							solving = SolverCoordinator.DONE;
+							solver.cancel();
+						}
+					}
+				} else {
+					units.add(new long[] { id, in.readLong(), in.readLong() });
+				}
+			}
+		} catch (IOException e) {
+			// la connessione  stata chiusa
+		}
+		units.add(new long[] { SolverCoordinator.DONE, 0, 0 });
+	}
+
+	/**
+	 * Manda un segnale al coordinatore ad intervalli regolari, finch la
+	 * connessione resta aperta.
+	 */
+	private void heartbeat() {
+		try {
+			while (!socket.isClosed()) {
+				Thread.sleep(HEARTBEAT_MILLIS);
+				synchronized (out) {
+					out.writeInt(SolverCoordinator.HEARTBEAT);
+					out.flush();
+				}
+			}
+		} catch (IOException | InterruptedException e) {
+			// la connessione  stata chiusa
+		}
+	}
+
+	/**
+	 * Avvia un worker dalla riga di comando.
+	 *
+	 * @param args
+	 *            l'host e la porta del coordinatore.
+	 * @throws IOException
+	 *             se la connessione fallisce.
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto.
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		if (args.length < 2) {
+			System.err.println("Usage: SolverWorker <host> <port>");
+			System.exit(1);
+		}
+		int solved = new SolverWorker(args[0], Integer.parseInt(args[1])).run();
+		System.out.println("worker solved " + solved + " units");
+	}
+}
@@ -0,0 +1,325 @@
+package gj.forza4.player;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * La classe SpectatorLoad misura un {@link Broadcaster} su localhost. Avvia
+ * un certo numero di partite che pubblicano mosse casuali a ritmo costante e
+ * per ogni partita collega molti spettatori, letti da pochi thread con un
+ * {@link Selector}. Alla fine riporta quanti messaggi sono stati consegnati
+ * al secondo e i percentili del ritardo tra la pubblicazione di un evento e
+ * la sua lettura da parte di uno spettatore. Gli spettatori lenti, che non
+ * leggono mai, servono a controllare che non rallentino gli altri.
+ * <p>
+ * Uso: {@code SpectatorLoad <partite> <spettatori per partita> <eventi al
+ * secondo per partita> <secondi> [thread di scrittura] [spettatori lenti]}
+ *
+ * @author Ubaldo Puocci
+ */
+public class SpectatorLoad {
+
+	/** Numero di istanti di pubblicazione conservati per ogni partita. */
+	private static final int TIMES = 1 << 16;
+
+	/** Ampiezza di un intervallo dell'istogramma dei ritardi, in s. */
+	private static final int BUCKET_MICROS = 10;
+
+	/** Numero di intervalli dell'istogramma, fino a un secondo. */
+	private static final int BUCKETS = 1000000 / BUCKET_MICROS;
+
+	/** Numero di thread che leggono gli spettatori. */
+	private static final int READERS = 2;
+
+	/**
+	 * Istante di pubblicazione di ogni evento, per partita e sequenza. Viene
+	 * scritto dal thread delle partite prima della pubblicazione e letto dai
+	 * thread degli spettatori.
+	 */
+	private final AtomicLongArray[] publishTimes;
+
+	/** Booleano che indica se la misura  finita. */
+	private volatile boolean finished;
+
+	/**
+	 * Istanzia un nuovo SpectatorLoad.
+	 *
+	 * @param games
+	 *            il numero di partite
+	 */
+	private SpectatorLoad(int games) {
+		this.publishTimes = new AtomicLongArray[games];
+		for (int game = 0; game < games; game++) {
+			publishTimes[game] = new AtomicLongArray(TIMES);
+		}
+	}
+
+	/**
+	 * La classe Reader legge i messaggi di una parte degli spettatori e ne
+	 * misura il ritardo.
+	 */
+	private class Reader implements Runnable {
+
+		/** Selettore degli spettatori. */
+		final Selector selector;
+
+		/** Istogramma dei ritardi. */
+		final long[] histogram = new long[BUCKETS + 1];
+
+		/** Numero di messaggi MOVE e START letti. */
+		long delivered;
+
+		/** Numero di fotografie lette. */
+		long snapshots;
+
+		/** L'errore che ha fermato la lettura, o null. */
+		IOException error;
+
+		/**
+		 * Istanzia un nuovo Reader.
+		 *
+		 * @throws IOException
+		 *             se il selettore non pu essere aperto.
+		 */
+		Reader() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/**
+		 * Collega uno spettatore a una partita.
+		 *
+		 * @param port
+		 *            la porta del Broadcaster
+		 * @param game
+		 *            la partita da seguire
+		 * @param slow
+		 *            true se lo spettatore non deve mai leggere
+		 * @throws IOException
+		 *             se la connessione fallisce.
+		 */
+		void subscribe(int port, int game, boolean slow) throws IOException {
+			SocketChannel channel = SocketChannel.open(new InetSocketAddress("localhost", port));
+			ByteBuffer request = ByteBuffer.allocate(Integer.BYTES);
+			request.putInt(game).flip();
+			while (request.hasRemaining()) {
+				channel.write(request);
+			}
+			if (slow) {
+				return;
+			}
+			channel.configureBlocking(false);
+			ByteBuffer buffer = ByteBuffer.allocate(64 << 10);
+			buffer.putInt(0, game);
+			buffer.position(Integer.BYTES);
+			channel.register(selector, SelectionKey.OP_READ, buffer);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!finished) {
+					selector.select(100);
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						ByteBuffer buffer = (ByteBuffer) key.attachment();
+						if (((SocketChannel) key.channel()).read(buffer) < 0) {
+							key.cancel();
+							continue;
+						}
+						parse(buffer, System.nanoTime());
+					}
+				}
+			} catch (IOException e) {
+				// il main lo rilancia dopo la misura
+				error = e;
+			}
+		}
+
+		/**
+		 * Legge i messaggi completi nel buffer di uno spettatore. I primi
+		 * quattro byte del buffer contengono la partita seguita.
+		 *
+		 * @param buffer
+		 *            il buffer dello spettatore
+		 * @param now
+		 *            l'istante della lettura
+		 */
+		private void parse(ByteBuffer buffer, long now) {
+			int game = buffer.getInt(0);
+			int end = buffer.position();
+			int position = Integer.BYTES;
+			while (position < end) {
+				byte type = buffer.get(position);
+				int size = Broadcaster.MESSAGE_BYTES;
+				if (type == Broadcaster.SNAPSHOT) {
+					if (end - position < Broadcaster.SNAPSHOT_BYTES) {
+						break;
+					}
+					size = Broadcaster.SNAPSHOT_BYTES + (buffer.get(position + Broadcaster.SNAPSHOT_BYTES - 1) & 0xFF);
+				}
+				if (end - position < size) {
+					break;
+				}
+				if (type == Broadcaster.SNAPSHOT) {
+					snapshots++;
+				} else {
+					int seq = buffer.getInt(position + 5);
+					long micros = (now - publishTimes[game].get(seq & (TIMES - 1))) / 1000;
+					histogram[(int) Math.min(BUCKETS, Math.max(0, micros / BUCKET_MICROS))]++;
+					delivered++;
+				}
+				position += size;
+			}
+			// i messaggi incompleti tornano all'inizio del buffer
+			ByteBuffer rest = buffer.duplicate();
+			rest.limit(end).position(position);
+			buffer.position(Integer.BYTES);
+			buffer.put(rest);
+		}
+	}
+
+	/**
+	 * Esegue la misura dalla riga di comando.
+	 *
+	 * @param args
+	 *            partite, spettatori per partita, eventi al secondo per
+	 *            partita, secondi, thread di scrittura e spettatori lenti.
+	 * @throws Exception
+	 *             se la misura fallisce.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 4) {
+			System.err.println("Usage: SpectatorLoad <games> <spectators per game> <events/s per game> <seconds>"
+					+ " [writers] [slow spectators]");
+			System.exit(1);
+		}
+		int games = Integer.parseInt(args[0]);
+		int spectators = Integer.parseInt(args[1]);
+		int rate = Integer.parseInt(args[2]);
+		int seconds = Integer.parseInt(args[3]);
+		int writerCount = args.length > 4 ? Integer.parseInt(args[4]) : 2;
+		int slow = args.length > 5 ? Integer.parseInt(args[5]) : 0;
+		SpectatorLoad load = new SpectatorLoad(games);
+		try (Broadcaster broadcaster = new Broadcaster(0, writerCount)) {
+			GameFeed[] feeds = new GameFeed[games];
+			Board[] boards = new Board[games];
+			for (int game = 0; game < games; game++) {
+				feeds[game] = broadcaster.open(game);
+			}
+			List<Reader> readers = new ArrayList<Reader>();
+			for (int i = 0; i < READERS; i++) {
+				readers.add(load.new Reader());
+			}
+			for (int game = 0; game < games; game++) {
+				for (int i = 0; i < spectators; i++) {
+					readers.get(i % READERS).subscribe(broadcaster.getPort(), game, false);
+				}
+			}
+			for (int i = 0; i < slow; i++) {
+				readers.get(0).subscribe(broadcaster.getPort(), i % games, true);
+			}
+			List<Thread> threads = new ArrayList<Thread>();
+			for (Reader reader : readers) {
+				Thread thread = new Thread(reader, "spectator-reader");
+				thread.start();
+				threads.add(thread);
+			}
+			// gli spettatori ricevono la prima fotografia prima della misura
+			Thread.sleep(1000);
+
+			Random random = new Random(0);
+			long interval = 1000000000L / ((long) rate * games);
+			long start = System.nanoTime();
+			long deadline = start + seconds * 1000000000L;
+			long next = start;
+			long published = 0;
+			int game = 0;
+			while (next < deadline) {
+				long now = System.nanoTime();
+				if (now < next) {
+					Thread.sleep(0, (int) Math.min(999999, next - now));
+					continue;
+				}
+				Board board = boards[game];
+				published++;
+				load.publishTimes[game].set((int) (feeds[game].getSequence() & (TIMES - 1)), System.nanoTime());
+				if (board == null || board.hasWinner() || board.isBoardFull()) {
+					boards[game] = new Board(6, 7);
+					feeds[game].start(6, 7);
+				} else {
+					int colonna;
+					do {
+						colonna = random.nextInt(board.getWidth());
+					} while (!board.isValidMove(colonna));
+					boolean player = board.getEmptyCells() % 2 == 0;
+					board.makeMove(colonna, player);
+					feeds[game].publish(colonna, player);
+				}
+				game = (game + 1) % games;
+				next += interval;
+			}
+			double elapsed = (System.nanoTime() - start) / 1e9;
+			Thread.sleep(500);
+			load.finished = true;
+			for (Thread thread : threads) {
+				thread.join();
+			}
+
+			long delivered = 0;
+			long snapshots = 0;
+			long[] histogram = new long[BUCKETS + 1];
+			for (Reader reader : readers) {
+				if (reader.error != null) {
+					throw reader.error;
+				}
+				delivered += reader.delivered;
+				snapshots += reader.snapshots;
+				for (int i = 0; i <= BUCKETS; i++) {
+					histogram[i] += reader.histogram[i];
+				}
+			}
+			System.out.println(games + " games x " + spectators + " spectators, " + published + " events published, "
+					+ delivered + "/" + published * spectators + " delivered, " + (long) (delivered / elapsed)
+					+ " msg/s");
+			System.out.println("latency p50 " + percentile(histogram, delivered, 0.5) + " us, p99 "
+					+ percentile(histogram, delivered, 0.99) + " us, p999 " + percentile(histogram, delivered, 0.999)
+					+ " us");
+			System.out.println("snapshots read " + snapshots + " (" + broadcaster.getSnapshots()
+					+ " catch-up), slow spectators dropped " + broadcaster.getDropped() + "/" + slow);
+		}
+	}
+
+	/**
+	 * Calcola un percentile dall'istogramma dei ritardi.
+	 *
+	 * @param histogram
+	 *            l'istogramma
+	 * @param total
+	 *            il numero di campioni
+	 * @param fraction
+	 *            il percentile, tra 0 e 1
+	 * @return il limite superiore dell'intervallo del percentile, in s.
+	 */
+	private static long percentile(long[] histogram, long total, double fraction) {
+		long target = (long) Math.ceil(total * fraction);
+		long seen = 0;
+		for (int i = 0; i < histogram.length; i++) {
+			seen += histogram[i];
+			if (seen >= target) {
+				return (long) (i + 1) * BUCKET_MICROS;
+			}
+		}
+		return (long) histogram.length * BUCKET_MICROS;
+	}
+}
@@ -0,0 +1,76 @@
+package gj.forza4.player;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * La classe Tables contiene le tabelle che dipendono solo dalle dimensioni
+ * della board: le chiavi di Zobrist usate da {@link Board} e le sequenze
+ * vincenti usate da {@link ThreatAnalyzer} ed {@link Evaluator}. Le tabelle
+ * vengono costruite una sola volta per ogni dimensione e condivise da tutte
+ * le istanze della JVM, quindi non devono mai essere modificate.
+ *
+ * @author Ubaldo Puocci
+ */
+final class Tables {
+
+	/** Seme delle chiavi di Zobrist, fisso per avere chiavi riproducibili. */
+	private static final long ZOBRIST_SEED = 0x466F727A6134L;
+
+	/** Le tabelle gi costruite, per dimensioni. */
+	private static final ConcurrentMap<Integer, Tables> CACHE = new ConcurrentHashMap<Integer, Tables>();
+
+	/** Chiavi di Zobrist, una per ogni cella e per ogni segnalino. */
+	final long[][][] zobrist;
+
+	/** Tutte le sequenze vincenti della board. */
+	final int[][] windows;
+
+	/** Per ogni cella, gli indici delle sequenze che la contengono. */
+	final int[][] cellWindows;
+
+	/**
+	 * Costruisce le tabelle per board delle dimensioni indicate.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 */
+	private Tables(int height, int width) {
+		Random random = new Random(ZOBRIST_SEED);
+		this.zobrist = new long[width][height][2];
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				zobrist[x][y][0] = random.nextLong();
+				zobrist[x][y][1] = random.nextLong();
+			}
+		}
+		this.windows = ThreatAnalyzer.buildWindows(width, height);
+		this.cellWindows = ThreatAnalyzer.buildCellWindows(windows, width * height);
+	}
+
+	/**
+	 * Ritorna le tabelle per board delle dimensioni indicate, costruendole
+	 * alla prima richiesta.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @return le tabelle condivise.
+	 */
+	static Tables get(int height, int width) {
+		Integer dimensions = height << 16 | width;
+		Tables tables = CACHE.get(dimensions);
+		if (tables == null) {
+			tables = new Tables(height, width);
+			Tables previous = CACHE.putIfAbsent(dimensions, tables);
+			if (previous != null) {
+				tables = previous;
+			}
+		}
+		return tables;
+	}
+}
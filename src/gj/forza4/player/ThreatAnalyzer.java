@@ -0,0 +1,384 @@
+package gj.forza4.player;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * La classe ThreatAnalyzer analizza le minacce presenti sulla board e prova a
+ * determinare staticamente, senza ricerca, l'esito della partita. Una minaccia
+ *  una cella vuota che completerebbe una sequenza di {@code WIN_LENGTH}
+ * segnalini dello stesso giocatore.
+ * <p>
+ * Oltre alle minacce immediate, la classe applica le regole di zugzwang in
+ * cui il giocatore che non deve muovere, il <i>controllore</i>, risponde
+ * sempre nella stessa colonna dell'avversario. Le posizioni delle celle vuote
+ * di una colonna si contano dalla prima cella libera, che ha posizione 0. In
+ * una colonna con un numero pari di celle vuote il controllore ottiene le
+ * posizioni dispari e chi muove le pari (la regola <i>claimeven</i>). Quando
+ * chi muove riempie una colonna con un numero dispari di celle vuote, il
+ * controllore inizia un'altra colonna dispari, quindi in queste colonne chi
+ * muove pu ottenere qualsiasi cella.
+ * <ul>
+ * <li>Se le colonne dispari sono in numero pari e chi muove non completa
+ * nessuna sequenza con le celle che pu ottenere, non pu vincere; se inoltre
+ * il controllore completa una sequenza con le sue celle delle colonne pari, la
+ * partita  persa. Con board di altezza pari  la regola delle minacce pari
+ * del secondo giocatore.</li>
+ * <li>Se le colonne dispari sono in numero dispari, il controllore non inizia
+ * mai una di queste: se ci ha una minaccia in posizione dispari, chi muove
+ * prima o poi deve giocare nella cella sotto e il controllore vince, a meno
+ * che chi muove non completi prima una sequenza. Con board di altezza pari 
+ * la regola delle minacce dispari del primo giocatore.</li>
+ * </ul>
+ *
+ * @author Ubaldo Puocci
+ */
+class ThreatAnalyzer {
+
+	/** L'esito della partita non pu essere determinato staticamente. */
+	static final byte UNKNOWN = 0;
+
+	/** Il giocatore che muove vince. */
+	static final byte WIN = 1;
+
+	/** Il giocatore che muove perde. */
+	static final byte LOSS = 2;
+
+	/** Il giocatore che muove al massimo pareggia. */
+	static final byte NOT_WIN = 3;
+
+	/** Numero di segnalini in fila che occorrono per vincere. */
+	private static final int WIN_LENGTH = 4;
+
+	/** Istanza della classe Board da analizzare. */
+	private final Board board;
+
+	/**
+	 * Tutte le sequenze di {@link #WIN_LENGTH} celle della board. Ogni cella 
+	 * codificata come {@code colonna * altezza + riga}.
+	 */
+	private final int[][] windows;
+
+	/** Per ogni cella, le sequenze che la contengono. */
+	private final int[][] cellWindows;
+
+	/**
+	 * Per ogni colonna, la parit delle posizioni delle celle vuote ottenute
+	 * da un giocatore, o -1 se le ottiene tutte. Usato da
+	 * {@link #canComplete(byte)}.
+	 */
+	private final int[] claimParity;
+
+	/**
+	 * Per ogni colonna, la prima posizione che il giocatore non ottiene pi.
+	 * Usato da {@link #canComplete(byte)}.
+	 */
+	private final int[] claimLimit;
+
+	/**
+	 * Istanzia un nuovo ThreatAnalyzer per la board passata come parametro.
+	 * L'elenco delle sequenze vincenti viene preso da {@link Tables}.
+	 *
+	 * @param board
+	 *            la board da analizzare
+	 */
+	ThreatAnalyzer(Board board) {
+		this.board = board;
+		Tables tables = Tables.get(board.getHeight(), board.getWidth());
+		this.windows = tables.windows;
+		this.cellWindows = tables.cellWindows;
+		this.claimParity = new int[board.getWidth()];
+		this.claimLimit = new int[board.getWidth()];
+	}
+
+	/**
+	 * Costruisce l'elenco di tutte le sequenze di {@link #WIN_LENGTH} celle in
+	 * verticale, orizzontale e nelle due direzioni oblique.
+	 *
+	 * @param width
+	 *            la larghezza della board
+	 * @param height
+	 *            l'altezza della board
+	 * @return le sequenze vincenti.
+	 */
+	static int[][] buildWindows(int width, int height) {
+		int[][] directions = { { 0, 1 }, { 1, 0 }, { 1, 1 }, { 1, -1 } };
+		List<int[]> result = new ArrayList<int[]>();
+		for (int x = 0; x < width; x++) {
+			for (int y = 0; y < height; y++) {
+				for (int[] d : directions) {
+					int endX = x + d[0] * (WIN_LENGTH - 1);
+					int endY = y + d[1] * (WIN_LENGTH - 1);
+					if (endX < 0 || endX >= width || endY < 0 || endY >= height) {
+						continue;
+					}
+					int[] window = new int[WIN_LENGTH];
+					for (int w = 0; w < WIN_LENGTH; w++) {
+						window[w] = (x + d[0] * w) * height + y + d[1] * w;
+					}
+					result.add(window);
+				}
+			}
+		}
+		return result.toArray(new int[result.size()][]);
+	}
+
+	/**
+	 * Costruisce, per ogni cella, l'elenco degli indici delle sequenze che la
+	 * contengono.
+	 *
+	 * @param windows
+	 *            le sequenze vincenti
+	 * @param cells
+	 *            il numero di celle della board
+	 * @return le sequenze di ogni cella.
+	 */
+	static int[][] buildCellWindows(int[][] windows, int cells) {
+		int[] counts = new int[cells];
+		for (int[] window : windows) {
+			for (int cell : window) {
+				counts[cell]++;
+			}
+		}
+		int[][] result = new int[cells][];
+		for (int cell = 0; cell < cells; cell++) {
+			result[cell] = new int[counts[cell]];
+			counts[cell] = 0;
+		}
+		for (int i = 0; i < windows.length; i++) {
+			for (int cell : windows[i]) {
+				result[cell][counts[cell]++] = i;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Controlla se la cella indicata  una minaccia per il giocatore, ovvero se
+	 *  vuota e se inserendovi un suo segnalino si completa una sequenza.
+	 *
+	 * @param column
+	 *            la colonna della cella
+	 * @param row
+	 *            la riga della cella, partendo dal basso
+	 * @param sign
+	 *            il segnalino del giocatore
+	 * @return true, se la cella  una minaccia. False altrimenti.
+	 */
+	boolean isThreat(int column, int row, byte sign) {
+		if (board.getCell(column, row) != Board.NOBODY) {
+			return false;
+		}
+		int height = board.getHeight();
+		int self = column * height + row;
+		for (int index : cellWindows[self]) {
+			boolean complete = true;
+			for (int cell : windows[index]) {
+				if (cell != self && board.getCell(cell / height, cell % height) != sign) {
+					complete = false;
+					break;
+				}
+			}
+			if (complete) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Prova a determinare l'esito della partita per il giocatore che deve
+	 * muovere. Prima controlla le minacce immediate: se chi muove pu
+	 * completare una sequenza vince, se l'avversario ha due minacce giocabili,
+	 * oppure una minaccia giocabile con un'altra subito sopra, chi muove perde.
+	 * Poi applica le regole di zugzwang descritte nella documentazione della
+	 * classe.
+	 *
+	 * @param sign
+	 *            il segnalino del giocatore che deve muovere
+	 * @return {@link #WIN}, {@link #LOSS}, {@link #NOT_WIN} oppure
+	 *         {@link #UNKNOWN}.
+	 */
+	byte evaluate(byte sign) {
+		byte opponent = sign == Board.PLAYER ? Board.AI : Board.PLAYER;
+		int height = board.getHeight();
+		int width = board.getWidth();
+		int opponentThreats = 0;
+		boolean stacked = false;
+		int oddColumns = 0;
+		for (int x = 0; x < width; x++) {
+			int y = board.getColumnCount(x);
+			if ((height - y) % 2 != 0) {
+				oddColumns++;
+			}
+			if (y >= height) {
+				continue;
+			}
+			if (isThreat(x, y, sign)) {
+				return WIN;
+			}
+			if (isThreat(x, y, opponent)) {
+				opponentThreats++;
+				if (y + 1 < board.getHeight() && isThreat(x, y + 1, opponent)) {
+					stacked = true;
+				}
+			}
+		}
+		if (opponentThreats >= 2 || stacked) {
+			return LOSS;
+		}
+		if (oddColumns % 2 == 0) {
+			for (int x = 0; x < width; x++) {
+				claimParity[x] = (height - board.getColumnCount(x)) % 2 == 0 ? 0 : -1;
+				claimLimit[x] = height;
+			}
+			if (!canComplete(sign)) {
+				for (int x = 0; x < width; x++) {
+					// nelle colonne dispari il controllore non ha celle sicure
+					claimParity[x] = 1;
+					claimLimit[x] = (height - board.getColumnCount(x)) % 2 == 0 ? height : 0;
+				}
+				return canComplete(opponent) ? LOSS : NOT_WIN;
+			}
+			return UNKNOWN;
+		}
+		for (int c = 0; c < width; c++) {
+			int top = board.getColumnCount(c);
+			if ((height - top) % 2 == 0) {
+				continue;
+			}
+			// la minaccia dispari pi bassa del controllore nella colonna
+			int threat = 1;
+			while (top + threat < height && !isThreat(c, top + threat, opponent)) {
+				threat += 2;
+			}
+			if (top + threat >= height) {
+				continue;
+			}
+			for (int x = 0; x < width; x++) {
+				claimParity[x] = (height - board.getColumnCount(x)) % 2 == 0 ? 0 : -1;
+				claimLimit[x] = height;
+			}
+			claimParity[c] = 0;
+			claimLimit[c] = threat;
+			if (!canComplete(sign)) {
+				return LOSS;
+			}
+		}
+		return UNKNOWN;
+	}
+
+	/**
+	 * Controlla se il giocatore pu completare almeno una sequenza usando i
+	 * suoi segnalini e le celle vuote che ottiene secondo
+	 * {@link #claimParity} e {@link #claimLimit}.
+	 *
+	 * @param sign
+	 *            il segnalino del giocatore
+	 * @return true, se esiste una sequenza completabile. False altrimenti.
+	 */
+	private boolean canComplete(byte sign) {
+		int height = board.getHeight();
+		for (int[] window : windows) {
+			boolean complete = true;
+			for (int cell : window) {
+				int x = cell / height;
+				int y = cell % height;
+				byte content = board.getCell(x, y);
+				if (content == Board.NOBODY) {
+					int position = y - board.getColumnCount(x);
+					if (position >= claimLimit[x] || (claimParity[x] >= 0 && position % 2 != claimParity[x])) {
+						complete = false;
+						break;
+					}
+				} else if (content != sign) {
+					complete = false;
+					break;
+				}
+			}
+			if (complete) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Confronta i verdetti con l'esito esatto calcolato dal {@link Solver} su
+	 * posizioni casuali con poche celle vuote, ottenute giocando mosse
+	 * casuali dalla board vuota.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param positions
+	 *            il numero di posizioni da controllare
+	 * @param maxEmpty
+	 *            il numero massimo di celle vuote delle posizioni
+	 * @param seed
+	 *            il seme delle partite casuali
+	 * @param verdicts
+	 *            se non  null, l'array in cui contare i verdetti, indicizzato
+	 *            dal verdetto
+	 * @return il numero di verdetti in disaccordo con il Solver, oppure -1
+	 *         se la board  troppo grande per il Solver.
+	 */
+	static int verify(int height, int width, int positions, int maxEmpty, long seed, int[] verdicts) {
+		if (width * (height + 1) > Long.SIZE) {
+			return -1;
+		}
+		Solver solver = new Solver(height, width, 20);
+		Random random = new Random(seed);
+		int mismatches = 0;
+		int checked = 0;
+		while (checked < positions) {
+			Board board = new Board(height, width);
+			boolean player = true;
+			while (!board.hasWinner() && !board.isBoardFull() && board.getEmptyCells() > maxEmpty) {
+				int colonna;
+				do {
+					colonna = random.nextInt(width);
+				} while (!board.isValidMove(colonna));
+				board.makeMove(colonna, player);
+				player = !player;
+			}
+			if (board.hasWinner() || board.isBoardFull()) {
+				continue;
+			}
+			byte sign = player ? Board.PLAYER : Board.AI;
+			byte verdict = new ThreatAnalyzer(board).evaluate(sign);
+			if (verdicts != null) {
+				verdicts[verdict]++;
+			}
+			long current = player ? board.getPlayerBits() : board.getAiBits();
+			int esito = solver.solveWeak(current, board.getPlayerBits() | board.getAiBits());
+			if ((verdict == WIN && esito != 1) || (verdict == LOSS && esito != -1)
+					|| (verdict == NOT_WIN && esito == 1)) {
+				mismatches++;
+			}
+			checked++;
+		}
+		return mismatches;
+	}
+
+	/**
+	 * Controlla i verdetti su board 6x7 e 4x5 e riporta quante volte ogni
+	 * verdetto  stato dato.
+	 *
+	 * @param args
+	 *            il numero di posizioni da controllare per ogni board.
+	 */
+	public static void main(String[] args) {
+		int positions = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		int[][] boards = { { 6, 7, 14 }, { 6, 7, 22 }, { 4, 5, 12 } };
+		for (int[] b : boards) {
+			int[] verdicts = new int[4];
+			int mismatches = verify(b[0], b[1], positions, b[2], 42, verdicts);
+			System.out.println(b[0] + "x" + b[1] + " with " + b[2] + " empty cells: " + mismatches + " mismatches, "
+					+ verdicts[WIN] + " win, " + verdicts[LOSS] + " loss, " + verdicts[NOT_WIN] + " not win, "
+					+ verdicts[UNKNOWN] + " unknown");
+		}
+	}
+}
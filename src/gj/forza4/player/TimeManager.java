@@ -0,0 +1,172 @@
+package gj.forza4.player;
+
+/**
+ * La classe TimeManager gestisce il tempo a disposizione dell'AI durante una
+ * partita a tempo. La partita parte con un budget totale e ad ogni mossa
+ * completata viene aggiunto un incremento. Ad ogni mossa il tempo rimasto viene
+ * diviso tra le mosse che l'AI dovr ancora giocare, ottenendo un limite
+ * morbido, che decide se iniziare una nuova iterazione della ricerca, ed un
+ * limite rigido, oltre il quale la ricerca viene interrotta.
+ * <p>
+ * Il limite morbido cresce quando la posizione  instabile, ovvero quando la
+ * miglior mossa cambia tra un'iterazione e l'altra o quando il punteggio
+ * peggiora, e cala quando la ricerca conferma sempre la stessa mossa. Le mosse
+ * forzate non consumano tempo.
+ *
+ * @author Ubaldo Puocci
+ */
+public class TimeManager {
+
+	/** Tempo che non viene mai usato, per non perdere la partita per tempo. */
+	private final long SAFETY_MILLIS = 20;
+
+	/** Frazione del tempo rimasto che non viene mai usata. */
+	private final double SAFETY_RATIO = 0.05;
+
+	/** Quante volte il limite rigido pu superare il tempo assegnato. */
+	private final double MAX_STRETCH = 4;
+
+	/** Fattore di instabilit minimo. */
+	private final double MIN_FACTOR = 0.5;
+
+	/** Fattore di instabilit massimo. */
+	private final double MAX_FACTOR = 3;
+
+	/**
+	 * Frazione del limite morbido oltre la quale non si inizia una nuova
+	 * iterazione, che richiede di solito pi tempo di tutte le precedenti.
+	 */
+	private final double ITERATION_RATIO = 0.5;
+
+	/** Incremento aggiunto al tempo rimasto dopo ogni mossa, in ms. */
+	private final long increment;
+
+	/** Tempo rimasto per la partita, in ms. */
+	private long remaining;
+
+	/** Istante in cui  iniziata la mossa corrente, in ns. */
+	private long moveStart;
+
+	/** Tempo assegnato alla mossa corrente, in ms. */
+	private long softLimit;
+
+	/** Tempo oltre il quale la ricerca viene interrotta, in ms. */
+	private long hardLimit;
+
+	/** Fattore che moltiplica il limite morbido in base all'instabilit. */
+	private double factor;
+
+	/** Miglior mossa trovata nell'ultima iterazione. */
+	private int lastMove;
+
+	/** Punteggio trovato nell'ultima iterazione. */
+	private double lastScore;
+
+	/**
+	 * Istanzia un nuovo TimeManager.
+	 *
+	 * @param budgetMillis
+	 *            il tempo totale a disposizione per la partita, in ms
+	 * @param incrementMillis
+	 *            il tempo aggiunto dopo ogni mossa, in ms
+	 */
+	public TimeManager(long budgetMillis, long incrementMillis) {
+		this.remaining = budgetMillis;
+		this.increment = incrementMillis;
+	}
+
+	/**
+	 * Inizia a cronometrare una nuova mossa e calcola i limiti di tempo.
+	 *
+	 * @param emptyCells
+	 *            il numero di celle ancora vuote, usato per stimare quante
+	 *            mosse restano da giocare
+	 * @param forced
+	 *            true se la mossa  forzata e non serve cercare
+	 */
+	public void startMove(int emptyCells, boolean forced) {
+		moveStart = System.nanoTime();
+		factor = 1;
+		lastMove = -1;
+		lastScore = Double.NaN;
+		if (forced) {
+			softLimit = 0;
+			hardLimit = 0;
+			return;
+		}
+		long usable = Math.max(0, remaining - SAFETY_MILLIS - (long) (remaining * SAFETY_RATIO));
+		int movesLeft = Math.max(1, (emptyCells + 1) / 2);
+		long base = Math.min(usable, usable / movesLeft + increment * 3 / 4);
+		softLimit = base;
+		hardLimit = Math.min(usable, (long) (base * MAX_STRETCH));
+	}
+
+	/**
+	 * Comunica il risultato di un'iterazione completata e aggiorna il fattore
+	 * di instabilit.
+	 *
+	 * @param move
+	 *            la miglior mossa trovata
+	 * @param score
+	 *            il punteggio della miglior mossa
+	 */
+	public void iterationDone(int move, double score) {
+		if (lastMove >= 0) {
+			if (move != lastMove) {
+				factor *= 1.5;
+			} else if (score < lastScore) {
+				factor *= 1.25;
+			} else {
+				factor *= 0.9;
+			}
+			factor = Math.max(MIN_FACTOR, Math.min(MAX_FACTOR, factor));
+		}
+		lastMove = move;
+		lastScore = score;
+	}
+
+	/**
+	 * Controlla se c' tempo per iniziare una nuova iterazione.
+	 *
+	 * @return true, se si pu iniziare un'iterazione. False altrimenti.
+	 */
+	public boolean canStartIteration() {
+		return elapsed() < Math.min(hardLimit, softLimit * factor) * ITERATION_RATIO;
+	}
+
+	/**
+	 * Controlla se il limite rigido  stato superato e la ricerca deve essere
+	 * interrotta.
+	 *
+	 * @return true, se il tempo  scaduto. False altrimenti.
+	 */
+	public boolean isTimeUp() {
+		return elapsed() >= hardLimit;
+	}
+
+	/**
+	 * Termina la mossa corrente: il tempo usato viene sottratto da quello
+	 * rimasto e viene aggiunto l'incremento.
+	 */
+	public void stopMove() {
+		remaining = Math.max(0, remaining - elapsed()) + increment;
+	}
+
+	/**
+	 * Ritorna il tempo rimasto per la partita.
+	 *
+	 * @return il tempo rimasto, in ms.
+	 */
+	public long getRemaining() {
+		return remaining;
+	}
+
+	/**
+	 * Ritorna il tempo trascorso dall'inizio della mossa corrente.
+	 *
+	 * @return il tempo trascorso, in ms.
+	 */
+	private long elapsed() {
+		return (System.nanoTime() - moveStart) / 1000000;
+	}
+}
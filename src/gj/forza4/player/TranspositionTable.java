@@ -0,0 +1,169 @@
+package gj.forza4.player;
+
+import java.util.Arrays;
+
+/**
+ * La classe TranspositionTable mantiene in memoria i valori degli stati della
+ * board gi visitati dalla ricerca, indicizzati con la chiave di Zobrist della
+ * board. La tabella  condivisa tra tutte le ricerche di una partita, cos uno
+ * stato raggiunto da sequenze di mosse diverse viene valutato una sola volta.
+ *
+ * @author Ubaldo Puocci
+ */
+class TranspositionTable {
+
+	/** Il valore salvato  esatto. */
+	static final byte EXACT = 0;
+
+	/** Il valore salvato  un limite inferiore del valore reale. */
+	static final byte LOWER = 1;
+
+	/** Il valore salvato  un limite superiore del valore reale. */
+	static final byte UPPER = 2;
+
+	/** Colonna usata quando non  stata trovata una mossa migliore. */
+	static final byte NO_MOVE = -1;
+
+	/** Maschera usata per ricavare l'indice della cella dalla chiave. */
+	private final int mask;
+
+	/** Chiavi degli stati salvati. */
+	private final long[] keys;
+
+	/** Valori degli stati salvati. */
+	private final double[] values;
+
+	/** Profondit con cui  stato calcolato ogni valore. */
+	private final byte[] depths;
+
+	/** Tipo di ogni valore: {@link #EXACT}, {@link #LOWER} o {@link #UPPER}. */
+	private final byte[] flags;
+
+	/** Miglior mossa trovata per ogni stato. */
+	private final byte[] moves;
+
+	/** Array di booleani che indica quali celle sono occupate. */
+	private final boolean[] used;
+
+	/**
+	 * Istanzia una nuova TranspositionTable. La dimensione viene arrotondata
+	 * alla potenza di due successiva.
+	 *
+	 * @param size
+	 *            il numero minimo di stati che la tabella pu contenere.
+	 */
+	TranspositionTable(int size) {
+		int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+		this.mask = capacity - 1;
+		this.keys = new long[capacity];
+		this.values = new double[capacity];
+		this.depths = new byte[capacity];
+		this.flags = new byte[capacity];
+		this.moves = new byte[capacity];
+		this.used = new boolean[capacity];
+	}
+
+	/**
+	 * Ritorna l'indice della cella in cui  salvato lo stato con la chiave
+	 * passata come parametro, oppure -1 se lo stato non  presente.
+	 *
+	 * @param key
+	 *            la chiave dello stato.
+	 * @return l'indice della cella, o -1.
+	 */
+	int find(long key) {
+		int index = index(key);
+		return used[index] && keys[index] == key ? index : -1;
+	}
+
+	/**
+	 * Salva uno stato nella tabella. Uno stato gi presente viene sostituito
+	 * solo se il nuovo valore  stato calcolato con una profondit almeno
+	 * uguale, mentre uno stato diverso viene sempre sostituito.
+	 *
+	 * @param key
+	 *            la chiave dello stato.
+	 * @param value
+	 *            il valore dello stato.
+	 * @param depth
+	 *            la profondit con cui  stato calcolato il valore.
+	 * @param flag
+	 *            il tipo del valore.
+	 * @param move
+	 *            la miglior mossa trovata, o {@link #NO_MOVE}.
+	 */
+	void store(long key, double value, int depth, byte flag, int move) {
+		int index = index(key);
+		if (used[index] && keys[index] == key && depths[index] > depth) {
+			return;
+		}
+		used[index] = true;
+		keys[index] = key;
+		values[index] = value;
+		depths[index] = (byte) depth;
+		flags[index] = flag;
+		moves[index] = (byte) move;
+	}
+
+	/**
+	 * Ritorna il valore salvato nella cella.
+	 *
+	 * @param index
+	 *            l'indice ritornato da {@link #find(long)}.
+	 * @return il valore salvato.
+	 */
+	double value(int index) {
+		return values[index];
+	}
+
+	/**
+	 * Ritorna la profondit salvata nella cella.
+	 *
+	 * @param index
+	 *            l'indice ritornato da {@link #find(long)}.
+	 * @return la profondit salvata.
+	 */
+	int depth(int index) {
+		return depths[index];
+	}
+
+	/**
+	 * Ritorna il tipo del valore salvato nella cella.
+	 *
+	 * @param index
+	 *            l'indice ritornato da {@link #find(long)}.
+	 * @return il tipo del valore.
+	 */
+	byte flag(int index) {
+		return flags[index];
+	}
+
+	/**
+	 * Ritorna la miglior mossa salvata nella cella.
+	 *
+	 * @param index
+	 *            l'indice ritornato da {@link #find(long)}.
+	 * @return la colonna della miglior mossa, o {@link #NO_MOVE}.
+	 */
+	int move(int index) {
+		return moves[index];
+	}
+
+	/**
+	 * Svuota la tabella.
+	 */
+	void clear() {
+		Arrays.fill(used, false);
+	}
+
+	/**
+	 * Calcola l'indice della cella a partire dalla chiave.
+	 *
+	 * @param key
+	 *            la chiave dello stato.
+	 * @return l'indice della cella.
+	 */
+	private int index(long key) {
+		return (int) (key ^ (key >>> 32)) & mask;
+	}
+}
@@ -0,0 +1,325 @@
+package gj.forza4.player;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * La classe Tuner regola i pesi di {@link EvalParams} con il metodo SPSA
+ * (Simultaneous Perturbation Stochastic Approximation). Ad ogni iterazione
+ * tutti i pesi vengono perturbati insieme in una direzione casuale, in
+ * positivo e in negativo, e le due versioni dell'AI giocano tra loro molte
+ * partite brevi in parallelo su tutti i core. Il risultato stima il gradiente
+ * lungo la direzione scelta, e i pesi vengono spostati verso la versione che
+ * ha vinto di pi.
+ * <p>
+ * Ogni partita parte da un'apertura casuale, giocata due volte scambiando i
+ * colori. Dopo ogni iterazione lo stato viene salvato in un file di
+ * checkpoint, da cui il tuning riparte se viene interrotto. Alla fine i pesi
+ * vengono scritti in un file che l'AI carica in {@link Puocci#start(int, int)}
+ * tramite la propriet di sistema {@link EvalParams#FILE_PROPERTY}.
+ * <p>
+ * Uso: {@code Tuner <file pesi> [iterazioni] [coppie per iterazione]
+ * [checkpoint]}
+ *
+ * @author Ubaldo Puocci
+ */
+public class Tuner {
+
+	/** Altezza della board usata nelle partite. */
+	private static final int ROWS = 6;
+
+	/** Larghezza della board usata nelle partite. */
+	private static final int COLUMNS = 7;
+
+	/** Numero di mosse casuali giocate all'inizio di ogni partita. */
+	private static final int OPENING_MOVES = 4;
+
+	/** Passo iniziale dell'aggiornamento dei pesi. */
+	private static final double STEP = 2;
+
+	/** Ampiezza iniziale della perturbazione dei pesi. */
+	private static final double PERTURBATION = 1;
+
+	/** Costante di stabilit del passo, di solito il 10% delle iterazioni. */
+	private static final double STABILITY = 10;
+
+	/** Esponente di decadimento del passo. */
+	private static final double ALPHA = 0.602;
+
+	/** Esponente di decadimento della perturbazione. */
+	private static final double GAMMA = 0.101;
+
+	/** Seme del generatore casuale, combinato con il numero di iterazione. */
+	private static final long SEED = 0x5053A;
+
+	/**
+	 * I due giocatori di ogni thread, riusati per tutte le partite: ogni
+	 * Puocci alloca la sua tabella delle trasposizioni alla prima partita e
+	 * la svuota nelle successive.
+	 */
+	private static final ThreadLocal<Puocci[]> PLAYERS = new ThreadLocal<Puocci[]>() {
+
+		@Override
+		protected Puocci[] initialValue() {
+			return new Puocci[] { new Puocci(), new Puocci() };
+		}
+	};
+
+	/** Numero di iterazioni da eseguire. */
+	private final int iterations;
+
+	/** Numero di coppie di partite giocate ad ogni iterazione. */
+	private final int pairs;
+
+	/** File in cui salvare lo stato dopo ogni iterazione. */
+	private final Path checkpoint;
+
+	/** Pool di thread che giocano le partite. */
+	private final ExecutorService executor;
+
+	/** Prima iterazione da eseguire, diversa da zero dopo una ripresa. */
+	private int iteration;
+
+	/** I pesi correnti. */
+	private double[] theta;
+
+	/**
+	 * Istanzia un nuovo Tuner. Se il file di checkpoint esiste, il tuning
+	 * riprende da l, altrimenti parte dai pesi di default.
+	 *
+	 * @param iterations
+	 *            il numero di iterazioni
+	 * @param pairs
+	 *            il numero di coppie di partite per iterazione
+	 * @param checkpoint
+	 *            il file di checkpoint
+	 * @throws IOException
+	 *             se il checkpoint esiste ma non pu essere letto.
+	 */
+	public Tuner(int iterations, int pairs, Path checkpoint) throws IOException {
+		this.iterations = iterations;
+		this.pairs = pairs;
+		this.checkpoint = checkpoint;
+		this.executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		this.theta = EvalParams.loadDefault().toArray();
+		if (Files.exists(checkpoint)) {
+			restore();
+		}
+	}
+
+	/**
+	 * Esegue le iterazioni mancanti e ritorna i pesi finali.
+	 *
+	 * @return i pesi regolati.
+	 * @throws IOException
+	 *             se il checkpoint non pu essere scritto.
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto.
+	 */
+	public EvalParams run() throws IOException, InterruptedException {
+		try {
+			for (; iteration < iterations; iteration++) {
+				step();
+				save();
+				System.out.println("iteration " + (iteration + 1) + "/" + iterations + ": " + new EvalParams(theta));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+		return new EvalParams(theta);
+	}
+
+	/**
+	 * Esegue un'iterazione di SPSA: sceglie una direzione casuale, fa giocare
+	 * i pesi perturbati nei due versi e aggiorna i pesi correnti.
+	 *
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto.
+	 */
+	private void step() throws InterruptedException {
+		Random random = new Random(SEED + iteration);
+		double step = STEP / Math.pow(iteration + 1 + STABILITY, ALPHA);
+		double perturbation = PERTURBATION / Math.pow(iteration + 1, GAMMA);
+		double[] delta = new double[theta.length];
+		double[] plus = new double[theta.length];
+		double[] minus = new double[theta.length];
+		for (int i = 0; i < theta.length; i++) {
+			delta[i] = random.nextBoolean() ? 1 : -1;
+			plus[i] = theta[i] + perturbation * delta[i];
+			minus[i] = theta[i] - perturbation * delta[i];
+		}
+		double result = match(new EvalParams(plus), new EvalParams(minus), random.nextLong());
+		for (int i = 0; i < theta.length; i++) {
+			theta[i] += step * result / (2 * perturbation * delta[i]);
+		}
+	}
+
+	/**
+	 * Fa giocare le due versioni dell'AI tra loro in parallelo.
+	 *
+	 * @param plus
+	 *            i pesi della prima versione
+	 * @param minus
+	 *            i pesi della seconda versione
+	 * @param seed
+	 *            il seme delle aperture casuali
+	 * @return il punteggio medio della prima versione, tra -1 e 1.
+	 * @throws InterruptedException
+	 *             se il thread viene interrotto.
+	 */
+	private double match(final EvalParams plus, final EvalParams minus, long seed) throws InterruptedException {
+		Random random = new Random(seed);
+		List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+		for (int i = 0; i < pairs; i++) {
+			final int[] opening = randomOpening(random);
+			results.add(executor.submit(new Callable<Integer>() {
+
+				@Override
+				public Integer call() {
+					return playGame(plus, minus, opening) - playGame(minus, plus, opening);
+				}
+			}));
+		}
+		int total = 0;
+		for (Future<Integer> result : results) {
+			try {
+				total += result.get();
+			} catch (ExecutionException e) {
+				throw new IllegalStateException("Game failed", e.getCause());
+			}
+		}
+		return total / (2.0 * pairs);
+	}
+
+	/**
+	 * Sceglie un'apertura casuale che non faccia vincere nessuno.
+	 *
+	 * @param random
+	 *            il generatore casuale
+	 * @return le colonne dell'apertura.
+	 */
+	private static int[] randomOpening(Random random) {
+		while (true) {
+			Board board = new Board(ROWS, COLUMNS);
+			int[] opening = new int[OPENING_MOVES];
+			for (int i = 0; i < OPENING_MOVES; i++) {
+				opening[i] = random.nextInt(COLUMNS);
+				board.makeMove(opening[i], i % 2 == 0);
+			}
+			if (!board.hasWinner()) {
+				return opening;
+			}
+		}
+	}
+
+	/**
+	 * Gioca una partita tra due versioni dell'AI a partire dall'apertura,
+	 * con i giocatori del thread corrente.
+	 *
+	 * @param first
+	 *            i pesi della versione che muove per prima
+	 * @param second
+	 *            i pesi della versione che muove per seconda
+	 * @param opening
+	 *            le colonne dell'apertura
+	 * @return 1 se vince la prima versione, -1 se vince la seconda, 0 se
+	 *         pareggiano.
+	 */
+	static int playGame(EvalParams first, EvalParams second, int[] opening) {
+		Puocci[] players = PLAYERS.get();
+		players[0].setParams(first);
+		players[1].setParams(second);
+		Board referee = new Board(ROWS, COLUMNS);
+		for (Puocci player : players) {
+			player.start(ROWS, COLUMNS);
+		}
+		int turn = 0;
+		for (int colonna : opening) {
+			players[turn].forceMove(colonna);
+			players[1 - turn].tellMove(colonna);
+			referee.makeMove(colonna, turn == 0);
+			turn = 1 - turn;
+		}
+		while (!referee.hasWinner() && !referee.isBoardFull()) {
+			int colonna = players[turn].move();
+			referee.makeMove(colonna, turn == 0);
+			players[1 - turn].tellMove(colonna);
+			turn = 1 - turn;
+		}
+		if (!referee.hasWinner()) {
+			return 0;
+		}
+		return referee.playerIsWinner() ? 1 : -1;
+	}
+
+	/**
+	 * Salva l'iterazione e i pesi correnti nel file di checkpoint. Il file
+	 * viene prima scritto a parte e poi rinominato, cos un'interruzione non
+	 * lascia mai un checkpoint incompleto.
+	 *
+	 * @throws IOException
+	 *             se il file non pu essere scritto.
+	 */
+	private void save() throws IOException {
+		Properties properties = new EvalParams(theta).toProperties();
+		properties.setProperty("iteration", Integer.toString(iteration + 1));
+		Path temp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+		try (OutputStream out = Files.newOutputStream(temp)) {
+			properties.store(out, "Forza4 tuner checkpoint");
+		}
+		Files.move(temp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Ripristina l'iterazione e i pesi dal file di checkpoint.
+	 *
+	 * @throws IOException
+	 *             se il file non pu essere letto.
+	 */
+	private void restore() throws IOException {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(checkpoint)) {
+			properties.load(in);
+		}
+		iteration = Integer.parseInt(properties.getProperty("iteration", "0"));
+		theta = EvalParams.load(checkpoint).toArray();
+	}
+
+	/**
+	 * Avvia il tuning dalla riga di comando.
+	 *
+	 * @param args
+	 *            il file dei pesi da scrivere, il numero di iterazioni, il
+	 *            numero di coppie di partite per iterazione e il file di
+	 *            checkpoint.
+	 * @throws Exception
+	 *             se il tuning fallisce.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: Tuner <params file> [iterations] [pairs] [checkpoint]");
+			System.exit(1);
+		}
+		Path output = Paths.get(args[0]);
+		int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int pairs = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		Path checkpoint = Paths.get(args.length > 3 ? args[3] : args[0] + ".checkpoint");
+		EvalParams params = new Tuner(iterations, pairs, checkpoint).run();
+		params.save(output);
+		System.out.println("saved " + params + " to " + output);
+	}
+}
@@ -0,0 +1,150 @@
+package gj.forza4.player;
+
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * La classe VectorBatchEvaluator  l'implementazione di
+ * {@link BatchEvaluator} che usa la Vector API: ogni lane di un vettore
+ * contiene il bitboard di una posizione diversa, quindi gli shift e le
+ * maschere vengono applicati a pi posizioni con una sola istruzione. Le
+ * posizioni che non riempiono un vettore intero vengono valutate in modo
+ * scalare. Con meno di {@link #MIN_LANES} lane per vettore la versione
+ * vettoriale  pi lenta di quella scalare, quindi non viene usata.
+ *
+ * @author Ubaldo Puocci
+ */
+class VectorBatchEvaluator extends BatchEvaluator {
+
+	/** La forma di vettore pi larga supportata dalla CPU. */
+	private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+	/** Numero minimo di lane per cui la versione vettoriale conviene. */
+	static final int MIN_LANES = 4;
+
+	/**
+	 * Istanzia un nuovo VectorBatchEvaluator.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @throws UnsupportedOperationException
+	 *             se i vettori della CPU hanno meno di {@link #MIN_LANES}
+	 *             lane.
+	 */
+	VectorBatchEvaluator(int height, int width) {
+		super(height, width);
+		if (SPECIES.length() < MIN_LANES) {
+			throw new UnsupportedOperationException("Only " + SPECIES.length() + " lanes per vector");
+		}
+	}
+
+	@Override
+	public void winners(long[] player, long[] ai, int count, byte[] winners) {
+		int lanes = SPECIES.length();
+		int bound = SPECIES.loopBound(count);
+		int i = 0;
+		for (; i < bound; i += lanes) {
+			long playerWins = hasFour(LongVector.fromArray(SPECIES, player, i)).toLong();
+			long aiWins = hasFour(LongVector.fromArray(SPECIES, ai, i)).toLong();
+			for (int lane = 0; lane < lanes; lane++) {
+				if ((playerWins >>> lane & 1) != 0) {
+					winners[i + lane] = Board.PLAYER;
+				} else if ((aiWins >>> lane & 1) != 0) {
+					winners[i + lane] = Board.AI;
+				} else {
+					winners[i + lane] = Board.NOBODY;
+				}
+			}
+		}
+		for (; i < count; i++) {
+			winners[i] = hasFour(player[i]) ? Board.PLAYER : hasFour(ai[i]) ? Board.AI : Board.NOBODY;
+		}
+	}
+
+	@Override
+	public void threats(long[] player, long[] ai, int count, long[] playerThreats, long[] aiThreats) {
+		int bound = SPECIES.loopBound(count);
+		int i = 0;
+		for (; i < bound; i += SPECIES.length()) {
+			LongVector p = LongVector.fromArray(SPECIES, player, i);
+			LongVector a = LongVector.fromArray(SPECIES, ai, i);
+			LongVector empty = p.or(a).lanewise(VectorOperators.XOR, boardMask);
+			threatCells(p).and(empty).intoArray(playerThreats, i);
+			threatCells(a).and(empty).intoArray(aiThreats, i);
+		}
+		for (; i < count; i++) {
+			long mask = player[i] | ai[i];
+			playerThreats[i] = threatCells(player[i], mask);
+			aiThreats[i] = threatCells(ai[i], mask);
+		}
+	}
+
+	/**
+	 * Versione vettoriale di {@link BatchEvaluator#hasFour(long)}.
+	 *
+	 * @param bits
+	 *            i bitboard da controllare
+	 * @return la maschera delle lane che contengono una sequenza.
+	 */
+	private VectorMask<Long> hasFour(LongVector bits) {
+		VectorMask<Long> found = SPECIES.maskAll(false);
+		for (int shift : shifts) {
+			LongVector pairs = bits.and(bits.lanewise(VectorOperators.LSHR, shift));
+			LongVector fours = pairs.and(pairs.lanewise(VectorOperators.LSHR, 2 * shift));
+			found = found.or(fours.compare(VectorOperators.NE, 0));
+		}
+		return found;
+	}
+
+	/**
+	 * Versione vettoriale di {@link BatchEvaluator#threatCells(long, long)},
+	 * senza il filtro sulle celle vuote.
+	 *
+	 * @param bits
+	 *            i bitboard del giocatore
+	 * @return i bitboard delle celle che completerebbero una sequenza.
+	 */
+	private LongVector threatCells(LongVector bits) {
+		LongVector result = shl(bits, 1).and(shl(bits, 2)).and(shl(bits, 3));
+		for (int i = 1; i < shifts.length; i++) {
+			int shift = shifts[i];
+			LongVector pairs = shl(bits, shift).and(shl(bits, 2 * shift));
+			result = result.or(pairs.and(shl(bits, 3 * shift)));
+			result = result.or(pairs.and(shr(bits, shift)));
+			pairs = shr(bits, shift).and(shr(bits, 2 * shift));
+			result = result.or(pairs.and(shl(bits, shift)));
+			result = result.or(pairs.and(shr(bits, 3 * shift)));
+		}
+		return result;
+	}
+
+	/**
+	 * Shift a sinistra di tutte le lane.
+	 *
+	 * @param bits
+	 *            il vettore da spostare
+	 * @param shift
+	 *            il numero di bit
+	 * @return il vettore spostato.
+	 */
+	private static LongVector shl(LongVector bits, int shift) {
+		return bits.lanewise(VectorOperators.LSHL, shift);
+	}
+
+	/**
+	 * Shift logico a destra di tutte le lane.
+	 *
+	 * @param bits
+	 *            il vettore da spostare
+	 * @param shift
+	 *            il numero di bit
+	 * @return il vettore spostato.
+	 */
+	private static LongVector shr(LongVector bits, int shift) {
+		return bits.lanewise(VectorOperators.LSHR, shift);
+	}
+}
@@ -0,0 +1,243 @@
+package gj.forza4.player;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * La classe Warmup riduce il tempo della prima mossa di un processo appena
+ * avviato. Le prime ricerche di una JVM vengono interpretate, quindi sono
+ * molto pi lente di quelle successive: il riscaldamento gioca alcune
+ * partite tra due istanze di {@link Puocci} su un thread daemon, finch non
+ * scade un tempo massimo, cos il JIT compila la ricerca prima che arrivi la
+ * prima mossa vera. Il riscaldamento parte una sola volta per JVM, alla prima
+ * invocazione di {@link Puocci#start(int, int)}, e solo se la propriet di
+ * sistema {@link #PROPERTY} indica il tempo da dedicargli. Si ferma appena
+ * inizia la prima ricerca vera, per non contenderle la CPU: serve solo se tra
+ * l'inizio della partita e la prima ricerca passa del tempo, per esempio
+ * mentre muove l'avversario. Se la prima ricerca segue subito l'inizio della
+ * partita il riscaldamento le contende la CPU e la rallenta.
+ * <p>
+ * Il main serve anche per creare un archivio AppCDS delle classi del motore
+ * e per misurare la latenza della prima mossa in processi nuovi:
+ * <ul>
+ * <li>{@code Warmup [ms]} gioca per il tempo indicato e termina, da usare con
+ * {@code -XX:ArchiveClassesAtExit};</li>
+ * <li>{@code Warmup first [attesa]} stampa i microsecondi della prima mossa
+ * cercata in questa JVM, che arriva dopo l'attesa indicata in ms;</li>
+ * <li>{@code Warmup bench <processi> <attesa> [opzioni della JVM...]} avvia i
+ * processi con le opzioni indicate e riporta i percentili della prima
+ * mossa.</li>
+ * </ul>
+ *
+ * @author Ubaldo Puocci
+ */
+public final class Warmup {
+
+	/** Propriet di sistema con la durata massima del riscaldamento, in ms. */
+	public static final String PROPERTY = "forza4.warmup";
+
+	/** Durata del riscaldamento del main, in ms. */
+	private static final long TRAINING_MILLIS = 2000;
+
+	/** Booleano che indica se il riscaldamento  gi partito. */
+	private static final AtomicBoolean started = new AtomicBoolean();
+
+	/** Booleano che indica se  iniziata una ricerca vera. */
+	private static volatile boolean stopped;
+
+	/**
+	 * Costruttore privato: la classe ha solo metodi statici.
+	 */
+	private Warmup() {
+	}
+
+	/**
+	 * Avvia il riscaldamento su un thread daemon, se la propriet
+	 * {@link #PROPERTY} lo richiede e non  gi stato avviato.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 */
+	static void startInBackground(final int height, final int width) {
+		final long millis = Long.getLong(PROPERTY, 0);
+		if (millis <= 0 || !started.compareAndSet(false, true)) {
+			return;
+		}
+		Thread thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				Warmup.run(height, width, millis);
+			}
+		}, "forza4-warmup");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Ferma il riscaldamento, perch sta iniziando una ricerca vera. Le
+	 * ricerche del riscaldamento in corso si interrompono entro pochi nodi.
+	 */
+	static void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Controlla se il riscaldamento deve fermarsi.
+	 *
+	 * @return true, se  iniziata una ricerca vera. False altrimenti.
+	 */
+	static boolean isStopped() {
+		return stopped;
+	}
+
+	/**
+	 * Gioca partite tra due istanze di Puocci, con aperture casuali, finch
+	 * non scade il tempo indicato o non inizia una ricerca vera.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param millis
+	 *            la durata massima, in ms
+	 * @return il numero di mosse giocate.
+	 */
+	static int run(int height, int width, long millis) {
+		long deadline = System.nanoTime() + millis * 1000000;
+		Random random = new Random(0);
+		int moves = 0;
+		Puocci[] players = { new Puocci(), new Puocci() };
+		for (Puocci player : players) {
+			player.setWarmup();
+		}
+		while (System.nanoTime() < deadline && !stopped) {
+			Board referee = new Board(height, width);
+			for (Puocci player : players) {
+				player.start(height, width);
+			}
+			int turn = 0;
+			while (!referee.hasWinner() && !referee.isBoardFull() && System.nanoTime() < deadline && !stopped) {
+				int colonna;
+				if (moves % 3 == 0) {
+					// qualche mossa casuale per variare le posizioni cercate
+					do {
+						colonna = random.nextInt(width);
+					} while (!referee.isValidMove(colonna));
+					players[turn].forceMove(colonna);
+				} else {
+					colonna = players[turn].move();
+				}
+				referee.makeMove(colonna, turn == 0);
+				players[1 - turn].tellMove(colonna);
+				turn = 1 - turn;
+				moves++;
+			}
+		}
+		return moves;
+	}
+
+	/**
+	 * Misura in questa JVM il tempo della prima mossa che richiede una
+	 * ricerca, cio la seconda mossa dell'AI. Tra l'inizio della partita e la
+	 * prima mossa passa il tempo indicato, come quando in una partita vera
+	 * l'avversario pensa alla sua prima mossa.
+	 *
+	 * @param height
+	 *            l'altezza della board
+	 * @param width
+	 *            la larghezza della board
+	 * @param delay
+	 *            il tempo tra l'inizio della partita e la prima mossa, in ms
+	 * @return il tempo della mossa, in microsecondi.
+	 * @throws InterruptedException
+	 *             se l'attesa viene interrotta.
+	 */
+	static long firstMove(int height, int width, long delay) throws InterruptedException {
+		Puocci player = new Puocci();
+		player.start(height, width);
+		Thread.sleep(delay);
+		player.tellMove(width / 2);
+		player.move();
+		player.tellMove(width / 2);
+		long start = System.nanoTime();
+		player.move();
+		return (System.nanoTime() - start) / 1000;
+	}
+
+	/**
+	 * Avvia dei processi nuovi che misurano la prima mossa, e ritorna i
+	 * tempi ordinati.
+	 *
+	 * @param runs
+	 *            il numero di processi
+	 * @param delay
+	 *            il tempo tra l'inizio della partita e la prima mossa, in ms
+	 * @param options
+	 *            le opzioni della JVM dei processi
+	 * @return i tempi della prima mossa, in microsecondi.
+	 * @throws IOException
+	 *             se un processo non pu essere avviato.
+	 * @throws InterruptedException
+	 *             se l'attesa di un processo viene interrotta.
+	 */
+	static long[] bench(int runs, long delay, List<String> options) throws IOException, InterruptedException {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		long[] times = new long[runs];
+		for (int i = 0; i < runs; i++) {
+			List<String> command = new ArrayList<String>();
+			command.add(java);
+			command.addAll(options);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(Warmup.class.getName());
+			command.add("first");
+			command.add(Long.toString(delay));
+			Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+				String line = in.readLine();
+				process.waitFor();
+				if (line == null || process.exitValue() != 0) {
+					throw new IOException("First move benchmark failed: " + line);
+				}
+				times[i] = Long.parseLong(line.trim());
+			}
+		}
+		Arrays.sort(times);
+		return times;
+	}
+
+	/**
+	 * Esegue il riscaldamento, una misura o un benchmark dalla riga di
+	 * comando.
+	 *
+	 * @param args
+	 *            la modalit e i suoi parametri, come descritto nella classe.
+	 * @throws Exception
+	 *             se un processo del benchmark fallisce.
+	 */
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("first")) {
+			System.out.println(firstMove(6, 7, args.length > 1 ? Long.parseLong(args[1]) : 0));
+		} else if (args.length > 2 && args[0].equals("bench")) {
+			long delay = Long.parseLong(args[2]);
+			long[] times = bench(Integer.parseInt(args[1]), delay, Arrays.asList(args).subList(3, args.length));
+			System.out.println("first move after " + delay + " ms over " + times.length + " processes: p50 "
+					+ times[times.length / 2]
+					+ " us, p99 " + times[(times.length * 99 - 1) / 100] + " us, max " + times[times.length - 1]
+					+ " us");
+		} else {
+			long millis = args.length > 0 ? Long.parseLong(args[0]) : TRAINING_MILLIS;
+			System.out.println("warm-up played " + run(6, 7, millis) + " moves");
+		}
+	}
+}